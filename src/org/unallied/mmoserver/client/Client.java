@@ -1,13 +1,24 @@
 package org.unallied.mmoserver.client;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.mina.core.session.IoSession;
+import org.unallied.mmocraft.constants.WorldConstants;
 import org.unallied.mmocraft.net.Packet;
+import org.unallied.mmocraft.net.RecvOpcode;
+import org.unallied.mmocraft.tools.PrintError;
+import org.unallied.mmoserver.constants.ServerConstants;
 import org.unallied.mmoserver.monsters.ServerMonster;
+import org.unallied.mmoserver.net.BatchedPacket;
+import org.unallied.mmoserver.net.DirectPacket;
+import org.unallied.mmoserver.net.EncodablePacket;
 import org.unallied.mmoserver.net.PacketCreator;
+import org.unallied.mmoserver.net.SharedPacket;
 import org.unallied.mmoserver.net.sessions.LoginSession;
+import org.unallied.mmoserver.server.EntityVisitor;
 import org.unallied.mmoserver.server.Server;
 import org.unallied.mmoserver.server.ServerPlayer;
 import org.unallied.mmoserver.server.World;
@@ -16,7 +27,19 @@ import org.unallied.mmoserver.server.World;
 public class Client {
     public static final String CLIENT_KEY = "CLIENT";
     
+    /** 
+     * Packets which are sent right away instead of at the end of the tick.
+     * The client measures its latency with PONG.
+     */
+    private static final Set<RecvOpcode> URGENT_OPCODES = EnumSet.of(RecvOpcode.PONG);
+    
     private IoSession session;
+    
+    /** The packets waiting to be sent at the end of the tick.  Guarded by itself. */
+    private final List<Packet> outbound = new ArrayList<Packet>();
+    
+    /** The number of bytes in {@link #outbound}. */
+    private int outboundSize = 0;
     private ServerPlayer player;
     private int accountId;
     private boolean loggedIn = false;
@@ -25,6 +48,24 @@ public class Client {
     // Used during the login process.  Stores important info, like server/client nonce
     public LoginSession loginSession = new LoginSession();
     
+    /** Tells this client about a nearby player.  Kept so that convergecasts don't create one. */
+    private final EntityVisitor<ServerPlayer> nearbyPlayerVisitor = new EntityVisitor<ServerPlayer>() {
+        @Override
+        public void visit(ServerPlayer p) {
+            if (p.getId() != player.getId()) {
+                announce(PacketCreator.getPlayerMovement(p));
+            }
+        }
+    };
+    
+    /** Tells this client about a nearby monster.  Kept so that convergecasts don't create one. */
+    private final EntityVisitor<ServerMonster> nearbyMonsterVisitor = new EntityVisitor<ServerMonster>() {
+        @Override
+        public void visit(ServerMonster monster) {
+            announce(PacketCreator.getMonsterMovement(monster));
+        }
+    };
+    
     public Client(IoSession session) {
         this.session = session;
     }
@@ -99,6 +140,8 @@ public class Client {
      * Disconnects a player from the server
      */
     public final void disconnect() {
+        // Sent first so that this client's packets go out in the order they were announced
+        flush();
         try {
             if (player != null && isLoggedIn()) {
                 selectiveBroadcast(player, PacketCreator.getPlayerDisconnect(player));
@@ -142,13 +185,84 @@ public class Client {
     }
     
     /**
-     * Sends a packet to the client.  Use this for all packets.
+     * Sends a packet to the client.  Use this for all packets.  Once the
+     * client is logged in, packets wait for the end of the tick so that
+     * they are all sent with a single write.  Packets are always sent in
+     * the order that they were announced.
      * @param packet The packet to send to the client.
      */
     public void announce(Packet packet) {
-    	try {
-    		session.write(packet);
-    	} catch (Throwable t) {}
+        if (packet == null) {
+            return;
+        }
+        synchronized (outbound) {
+            if (outbound.isEmpty()) {
+                Server.getInstance().scheduleFlush(this);
+            }
+            // The broadcaster may release a shared packet before the end of the tick
+            if (packet instanceof SharedPacket) {
+                packet = SharedPacket.share(packet);
+            }
+            outbound.add(packet);
+            outboundSize += packet instanceof EncodablePacket
+                    ? ((EncodablePacket) packet).getSize() : packet.getBytes().length;
+            if (!isLoggedIn() || isUrgent(packet)
+                    || outboundSize >= ServerConstants.OUTBOUND_FLUSH_SIZE) {
+                flush();
+            }
+        }
+    }
+    
+    /**
+     * Returns whether a packet should be sent without waiting for the end
+     * of the tick.
+     * @param packet The packet.
+     * @return true if the packet is urgent.
+     */
+    private static boolean isUrgent(Packet packet) {
+        if (packet instanceof SharedPacket) {
+            packet = ((SharedPacket) packet).getPacket();
+        }
+        return packet instanceof DirectPacket
+                && URGENT_OPCODES.contains(((DirectPacket) packet).getOpcode());
+    }
+    
+    /**
+     * Sends every packet that is waiting for the end of the tick as a single
+     * write.  If the write fails, the client is disconnected, because it has
+     * missed a whole tick of packets and can no longer be kept in sync.
+     */
+    public void flush() {
+        Throwable failure = null;
+        synchronized (outbound) {
+            int count = outbound.size();
+            if (count == 0) {
+                return;
+            }
+            try {
+                // Written while synchronized so that batches can't pass each other
+                session.write(count == 1 ? outbound.get(0)
+                        : new BatchedPacket(outbound.toArray(new Packet[count]), count));
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                // The packets have been encoded, so shared packets can be let go
+                for (int i=0; i < count; ++i) {
+                    if (outbound.get(i) instanceof SharedPacket) {
+                        ((SharedPacket) outbound.get(i)).release();
+                    }
+                }
+                outbound.clear();
+                outboundSize = 0;
+            }
+        }
+        // Closed once the batch is gone, in case closing flushes again
+        IoSession session = this.session;
+        if (failure != null && session != null) {
+            System.out.println("Failed to send packets.  Closing connection for: " + session.getRemoteAddress());
+            PrintError.print(PrintError.EXCEPTION_CAUGHT, failure);
+            session.close(true);
+        }
     }
 
     /**
@@ -156,26 +270,14 @@ public class Client {
      * @param player the player to center the broadcast around.
      * @param packet the packet to broadcast
      */
-    public void selectiveBroadcast(ServerPlayer player, Packet packet) {
-        /*
-         *  For all chunks in the drawn radius (see constants) of the player's
-         *  chunk, send a packet to the players in the chunk.
-         */
-        List<ServerPlayer> players = World.getInstance().getNearbyPlayers(player.getLocation());
-        Iterator<ServerPlayer> iter = players.iterator();
-        while (iter.hasNext()) {
-            ServerPlayer p = iter.next();
-            if (p.getId() != player.getId()) {
-                try {
-                    p.getClient().announce(packet);
-                } catch (NullPointerException e) {
-                    if (p.getClient() != null) {
-                        Server.getInstance().logout(p.getClient());
-                    } else {
-                        Server.getInstance().getServerPlayerPool().removePlayer(p.getId());
-                    }
-                }
-            }
+    public void selectiveBroadcast(final ServerPlayer player, Packet packet) {
+        // Encoded once for every player
+        SharedPacket shared = SharedPacket.share(packet);
+        try {
+            // Everyone who can see the player's chunk is subscribed to it
+            World.getInstance().announceToSubscribers(player.getLocation(), shared, player);
+        } finally {
+            shared.release();
         }
     }
 
@@ -186,11 +288,16 @@ public class Client {
      * @param packet the packet to broadcast
      */
 	public void broadcast(ServerPlayer player, Packet packet) {
-		selectiveBroadcast(player, packet);
-		try {
-			player.getClient().announce(packet);
-		} catch (NullPointerException e) {
-		}
+	    SharedPacket shared = SharedPacket.share(packet);
+	    try {
+	        selectiveBroadcast(player, shared);
+	        try {
+	            player.getClient().announce(shared);
+	        } catch (NullPointerException e) {
+	        }
+	    } finally {
+	        shared.release();
+	    }
 	}
 	
 	/**
@@ -209,15 +316,10 @@ public class Client {
          *  For all chunks in the drawn radius (see constants) of the player's
          *  chunk, send a packet about them to the player
          */
-        List<ServerPlayer> players = World.getInstance().getNearbyPlayers(player.getLocation());
-        List<ServerMonster> monsters = World.getInstance().getNearbyMonsters(player.getLocation());
-        for (ServerPlayer p : players) {
-            if (p.getId() != player.getId()) {
-                announce(PacketCreator.getPlayerMovement(p));
-            }
-        }
-        for (ServerMonster monster : monsters) {
-            announce(PacketCreator.getMonsterMovement(monster));
-        }
+        World world = World.getInstance();
+        world.forEachNearbyPlayer(player.getLocation(), WorldConstants.WORLD_DRAW_DISTANCE,
+                nearbyPlayerVisitor);
+        world.forEachNearbyMonster(player.getLocation(), WorldConstants.WORLD_DRAW_DISTANCE,
+                nearbyMonsterVisitor);
     }
 }
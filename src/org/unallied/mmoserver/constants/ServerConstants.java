@@ -14,12 +14,81 @@ public class ServerConstants {
     /** The configuration file key for the database password. */
     public static final String CONF_DB_PASS = "DB_PASS";
     
+    /** The number of threads that run most packet handlers. */
+    public static final int GAME_HANDLER_THREADS = 4;
+    
+    /** The number of threads that run packet handlers which wait for the database. */
+    public static final int BLOCKING_HANDLER_THREADS = 8;
+    
+    /** The number of threads that run packet handlers which do a lot of computation. */
+    public static final int CPU_HANDLER_THREADS = Runtime.getRuntime().availableProcessors();
+    
+    /** 
+     * The number of a session's packets that can wait to be handled before
+     * the server stops reading from the session.
+     */
+    public static final int MAX_QUEUED_PACKETS = 256;
+    
+    /** 
+     * The most bytes that a packet from a client can have, including its
+     * opcode.  A client that sends a larger packet is disconnected.
+     */
+    public static final int MAX_PACKET_SIZE = 65536;
+    
     /** The distance in pixels that an object can be from its target before it is removed. */
     public static final double OBJECT_DESPAWN_DISTANCE = 1100;
 
     /** This is the time in milliseconds that the server waits between global character saves. */
     public static final long SAVE_ALL_CHARACTERS_FREQUENCY = 60000;
 
+    /** The directory containing the saved world. */
+    public static final String WORLD_DIRECTORY = "world/";
+    
+    /** This is the time in milliseconds that the server waits between checkpoints of changed chunks. */
+    public static final long SAVE_WORLD_FREQUENCY = 30000;
+    
+    /** 
+     * If true, every chunk is generated when the server starts.  Otherwise chunks
+     * are generated the first time that they are needed.
+     */
+    public static final boolean PREGENERATE_WORLD = false;
+    
+    /** The distance in chunks around each player that chunks are generated ahead of time. */
+    public static final int CHUNK_PREGENERATION_RADIUS = 4;
+    
+    /** This is the time in milliseconds that the server waits between checking for chunks to pre-generate. */
+    public static final long CHUNK_PREGENERATION_FREQUENCY = 500;
+
+    /** 
+     * The number of bytes of blocks that loaded chunks may use.  Past this,
+     * chunks that are far from every player and have been saved are unloaded.
+     */
+    public static final long CHUNK_MEMORY_BUDGET = 256 * 1024 * 1024;
+    
+    /** This is the time in milliseconds that the server waits between checking for chunks to unload. */
+    public static final long CHUNK_UNLOAD_FREQUENCY = 5000;
+    
+    /** The number of threads that load the chunks which players ask for. */
+    public static final int CHUNK_LOADING_THREADS = 2;
+
+    /** The maximum number of bytes of compressed chunk packets to keep in memory. */
+    public static final long CHUNK_CACHE_SIZE = 16 * 1024 * 1024;
+    
+    /** 
+     * The number of bytes of packets that can wait for the end of the tick
+     * before they are sent to a client.
+     */
+    public static final int OUTBOUND_FLUSH_SIZE = 16 * 1024;
+    
+    /** The maximum number of free direct buffers of each size to keep for outgoing packets. */
+    public static final int MAX_POOLED_BUFFERS = 1024;
+    
+    /** 
+     * The maximum number of blocks in a chunk whose changes are sent to players
+     * at the end of a tick.  If more blocks change, the whole chunk is sent.
+     */
+    public static final int MAX_BATCHED_BLOCK_CHANGES = 32;
+
     /** 
      * The multiplier on physical damage for monster threat.  Threat is used to determine
      * who has aggro on the monster.
@@ -11,6 +11,7 @@ import org.unallied.mmocraft.items.ItemType;
 import org.unallied.mmocraft.tools.Hasher;
 import org.unallied.mmoserver.client.Client;
 import org.unallied.mmoserver.server.ServerPlayer;
+import org.unallied.mmoserver.server.World;
 
 
 public class DummyDatabase implements DatabaseAccessor {
@@ -44,10 +45,8 @@ public class DummyDatabase implements DatabaseAccessor {
         player.setId(accountId);
         player.setName("Test" + accountId++);
         player.setLocation(new BoundLocation(0, 0, 0, 0));
-        // Kludge:  Create player on land
         player.init();
-        player.accelerateDown(100000, 10000f, 10000f);
-        player.update(100000);
+        player.setLocation(World.getInstance().getGroundLocation(player.getLocation()));
         player.setClientLocation(new BoundLocation(player.getLocation()));
         // Add all items in the item manager to the dummy character
         Collection<ItemData> itemData = ItemManager.getAllItemData();
@@ -17,6 +17,7 @@ import org.unallied.mmocraft.tools.input.GenericSeekableLittleEndianAccessor;
 import org.unallied.mmoserver.client.Client;
 import org.unallied.mmoserver.constants.DatabaseConstants;
 import org.unallied.mmoserver.server.ServerPlayer;
+import org.unallied.mmoserver.server.World;
 
 
 
@@ -133,9 +134,8 @@ public class MySQLDatabase implements DatabaseAccessor {
 //                player.init();
 //                player.setLocation(new BoundLocation(playerPosX, playerPosY, 0, 0));
                 
-                // Kludge:  Create player on land
-                player.accelerateDown(100000, 100f, 100f);
-                player.update(100000);
+                // Place the player on the ground
+                player.setLocation(World.getInstance().getGroundLocation(player.getLocation()));
                 player.setClientLocation(new BoundLocation(player.getLocation()));
                 
                 // Assign the player to the client
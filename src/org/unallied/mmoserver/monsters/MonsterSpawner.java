@@ -5,6 +5,7 @@ import java.util.Map;
 import java.util.Random;
 
 import org.unallied.mmocraft.BoundLocation;
+import org.unallied.mmocraft.constants.WorldConstants;
 import org.unallied.mmoserver.constants.ServerConstants;
 import org.unallied.mmoserver.net.PacketCreator;
 import org.unallied.mmoserver.server.Server;
@@ -126,6 +127,8 @@ public class MonsterSpawner {
                 location.moveRight(ServerConstants.MONSTER_SPAWNER_MIN_DISTANCE + 
                         ServerConstants.MONSTER_SPAWNER_DISTANCE * ((rand-0.5f) * 2));
             }
+            // Stand on the ground of the layer that the player is in
+            location = World.getInstance().getGroundLocation(location);
             ServerMonster newMonster = new ServerMonster(
                     World.getInstance().getMonster(location),
                     getNewMonsterId(), location);
@@ -151,7 +154,8 @@ public class MonsterSpawner {
         float spawnChance = World.getInstance().getSpawnChance(player.getLocation());
         
         // Modify spawn chance based on the number of nearby monsters
-        int nearbyMonsters = World.getInstance().getNearbyMonsters(player.getLocation()).size();
+        int nearbyMonsters = World.getInstance().countNearbyMonsters(player.getLocation(),
+                WorldConstants.WORLD_DRAW_DISTANCE);
         
         spawnChance *= (2 *  (1f - (1f * nearbyMonsters / NEARBY_MONSTER_MAX)));
         // Further chance when really low on nearby monsters
@@ -15,7 +15,6 @@ import org.unallied.mmocraft.LootIntf;
 import org.unallied.mmocraft.RawPoint;
 import org.unallied.mmocraft.Velocity;
 import org.unallied.mmocraft.animations.AnimationState;
-import org.unallied.mmocraft.blocks.Block;
 import org.unallied.mmocraft.constants.ClientConstants;
 import org.unallied.mmocraft.constants.WorldConstants;
 import org.unallied.mmocraft.geom.LongRectangle;
@@ -28,6 +27,7 @@ import org.unallied.mmocraft.tools.Authenticator;
 import org.unallied.mmoserver.ai.AI;
 import org.unallied.mmoserver.constants.ServerConstants;
 import org.unallied.mmoserver.net.PacketCreator;
+import org.unallied.mmoserver.server.EntityVisitor;
 import org.unallied.mmoserver.server.Server;
 import org.unallied.mmoserver.server.ServerPlayer;
 import org.unallied.mmoserver.server.World;
@@ -227,25 +227,11 @@ public class ServerMonster extends Monster {
      * @return
      */
     public Location collide(Location start, Location end) {
-        Location result = new BoundLocation(start);
         try {
-            World world = World.getInstance();
-            
-            // If air
-            Location horizontalCollide = new BoundLocation(world.collideWithBlock(start, end));
-            result.setRawX(horizontalCollide.getRawX());
-            
-            // Vertical testing
-            if (end.getRawY() != start.getRawY()) {
-                Location verticalEnd = new BoundLocation(result);
-                verticalEnd.setRawY(horizontalCollide.getRawY());
-                               
-                result = horizontalCollide;
-            }
+            return new BoundLocation(World.getInstance().collideWithBlock(start, end));
         } catch (NullPointerException e) {
-            
+            return new BoundLocation(start);
         }
-        return result;
     }
     
     @Override
@@ -255,12 +241,10 @@ public class ServerMonster extends Monster {
      * @return stuck.  True if the player is stuck; else false.
      */
     public boolean isStuck() {
-        for (RawPoint p : hitbox) {
-            Location start = new Location(location);
-            start.moveRawRight(p.getX());
-            start.moveRawDown(p.getY());
-            Block block = World.getInstance().getBlock(start);
-            if (block != null && block.isCollidable()) {
+        World world = World.getInstance();
+        for (int i=0; i < hitbox.size(); ++i) {
+            RawPoint p = hitbox.get(i);
+            if (world.isCollidableRaw(location.getRawX() + p.getX(), location.getRawY() + p.getY())) {
                 return true;
             }
         }
@@ -443,6 +427,85 @@ public class ServerMonster extends Monster {
         return aggro.element().getPlayer();
     }
     
+    /**
+     * Damages the players hit by one segment of a collision arc.  One visitor is
+     * reused for every segment of an attack instead of creating one for each
+     * segment.
+     */
+    private class PlayerCollisionVisitor implements EntityVisitor<ServerPlayer> {
+        private final CollisionBlob[] collisionArc;
+        private final float horizontalOffset;
+        private final float verticalOffset;
+
+        /** The index of the segment being checked. */
+        private int segment;
+
+        /** The top left corner of the segment. */
+        private Location topLeft;
+
+        /** The segment's rectangle, relative to {@link #topLeft}. */
+        private LongRectangle collisionRect;
+
+        private PlayerCollisionVisitor(CollisionBlob[] collisionArc, float horizontalOffset,
+                float verticalOffset) {
+            this.collisionArc = collisionArc;
+            this.horizontalOffset = horizontalOffset;
+            this.verticalOffset = verticalOffset;
+        }
+
+        @Override
+        public void visit(ServerPlayer player) {
+            /*
+             *  We need the playerRect to be offset based on the difference 
+             *  between it and the attacking player's location.  Otherwise
+             *  we will fail to detect a collision at (0, 0) where the world
+             *  wraps around.
+             */
+            if (player.isAlive()) {
+                player.update();
+                LongRectangle playerRect = new LongRectangle(player.getLocation().getRawDeltaX(topLeft), 
+                        player.getLocation().getRawDeltaY(topLeft),
+                        player.getWidth() * Location.BLOCK_GRANULARITY / WorldConstants.WORLD_BLOCK_WIDTH,
+                        player.getHeight() * Location.BLOCK_GRANULARITY / WorldConstants.WORLD_BLOCK_HEIGHT);
+                if (playerRect.intersects(collisionRect)) {
+                    int xOff = 0;
+                    if (direction == Direction.RIGHT) {
+                        xOff = (int) ((player.getLocation().getRawDeltaX(ServerMonster.this.location) * WorldConstants.WORLD_BLOCK_WIDTH / Location.BLOCK_GRANULARITY) - horizontalOffset - collisionArc[segment].getXOffset());
+                    } else {
+                        xOff = (int) (current.getWidth() - (ServerMonster.this.location.getRawDeltaX(player.getLocation()) * WorldConstants.WORLD_BLOCK_WIDTH / Location.BLOCK_GRANULARITY + getWidth() - horizontalOffset + collisionArc[segment].getFlipped().getXOffset()));
+                    }
+                    int yOff = (int) ((player.getLocation().getRawDeltaY(ServerMonster.this.location) * WorldConstants.WORLD_BLOCK_HEIGHT / Location.BLOCK_GRANULARITY - verticalOffset - collisionArc[segment].getYOffset()));
+                    float damage =  (direction == Direction.RIGHT ? collisionArc[segment] : collisionArc[segment].getFlipped()).getDamage(
+                            new Rectangle(player.getWidth(), player.getHeight()), xOff, yOff);
+                    int multipliedDamage = (int)Math.round(getMonsterDamageMultiplier() * damage * player.getDefenseMultiplier());
+                    if (player.getCurrent().isInvincible()) { // Player is invincible
+                        // Give player defense exp for being awesome.
+                        player.addExperience(SkillType.DEFENSE,
+                                player.getHpCurrent() > multipliedDamage ? (int) (multipliedDamage * 1.0) :
+                                (int) (player.getHpCurrent() * 1.0));
+                    } else { // Not invincible, so hurt the player
+                        if (player.getCurrent().isShielding()) { // Reduce damage if shielding
+                            // Give player defense exp for being sort of awesome.
+                            int damageShielded = (int) (multipliedDamage * 0.75);
+                            if (damageShielded > 0) {
+                                multipliedDamage -= damageShielded; // reduce damage taken
+                                int expGained = player.getHpCurrent() > damageShielded ? (int) (damageShielded * 0.35) :
+                                    (int) (player.getHpCurrent() * 0.35);
+                                expGained = expGained < 1 ? 1 : expGained;
+                                player.addExperience(SkillType.DEFENSE, expGained);
+                            }
+                        }
+                        player.damage(multipliedDamage);
+                        int expGain = player.getHpCurrent() > multipliedDamage ? (int) (multipliedDamage * 0.25) :
+                            (int) (player.getHpCurrent() * 0.25);
+                        expGain = expGain < 1 ? 1 : expGain;
+                        player.addExperience(SkillType.CONSTITUTION, expGain);
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Performs all checks needed to check whether a monster has hit a player.
      * @param collisionArc
@@ -456,6 +519,7 @@ public class ServerMonster extends Monster {
         if (!this.isAlive()) {
             return;
         }
+        PlayerCollisionVisitor visitor = new PlayerCollisionVisitor(collisionArc, horizontalOffset, verticalOffset);
         int curIndex = startingIndex - 1;
         do {
             curIndex = (curIndex + 1) % collisionArc.length;
@@ -478,59 +542,11 @@ public class ServerMonster extends Monster {
                  *  Using this, we need to grab every player in our rectangle for collision
                  *  testing.
                  */
-                List<ServerPlayer> players = World.getInstance().getNearbyPlayers(location);
-                LongRectangle collisionRect = new LongRectangle(0, 0, 
+                visitor.segment = curIndex;
+                visitor.topLeft = topLeft;
+                visitor.collisionRect = new LongRectangle(0, 0, 
                         bottomRight.getRawDeltaX(topLeft), bottomRight.getRawDeltaY(topLeft));
-                for (ServerPlayer player : players) {
-                    /*
-                     *  We need the playerRect to be offset based on the difference 
-                     *  between it and the attacking player's location.  Otherwise
-                     *  we will fail to detect a collision at (0, 0) where the world
-                     *  wraps around.
-                     */
-                    if (player.isAlive()) {
-                        player.update();
-                        LongRectangle playerRect = new LongRectangle(player.getLocation().getRawDeltaX(topLeft), 
-                                player.getLocation().getRawDeltaY(topLeft),
-                                player.getWidth() * Location.BLOCK_GRANULARITY / WorldConstants.WORLD_BLOCK_WIDTH,
-                                player.getHeight() * Location.BLOCK_GRANULARITY / WorldConstants.WORLD_BLOCK_HEIGHT);
-                        if (playerRect.intersects(collisionRect)) {
-                            int xOff = 0;
-                            if (direction == Direction.RIGHT) {
-                                xOff = (int) ((player.getLocation().getRawDeltaX(this.location) * WorldConstants.WORLD_BLOCK_WIDTH / Location.BLOCK_GRANULARITY) - horizontalOffset - collisionArc[curIndex].getXOffset());
-                            } else {
-                                xOff = (int) (current.getWidth() - (this.location.getRawDeltaX(player.getLocation()) * WorldConstants.WORLD_BLOCK_WIDTH / Location.BLOCK_GRANULARITY + getWidth() - horizontalOffset + collisionArc[curIndex].getFlipped().getXOffset()));
-                            }
-                            int yOff = (int) ((player.getLocation().getRawDeltaY(this.location) * WorldConstants.WORLD_BLOCK_HEIGHT / Location.BLOCK_GRANULARITY - verticalOffset - collisionArc[curIndex].getYOffset()));
-                            float damage =  (direction == Direction.RIGHT ? collisionArc[curIndex] : collisionArc[curIndex].getFlipped()).getDamage(
-                                    new Rectangle(player.getWidth(), player.getHeight()), xOff, yOff);
-                            int multipliedDamage = (int)Math.round(getMonsterDamageMultiplier() * damage * player.getDefenseMultiplier());
-                            if (player.getCurrent().isInvincible()) { // Player is invincible
-                                // Give player defense exp for being awesome.
-                                player.addExperience(SkillType.DEFENSE,
-                                        player.getHpCurrent() > multipliedDamage ? (int) (multipliedDamage * 1.0) :
-                                        (int) (player.getHpCurrent() * 1.0));
-                            } else { // Not invincible, so hurt the player
-                                if (player.getCurrent().isShielding()) { // Reduce damage if shielding
-                                    // Give player defense exp for being sort of awesome.
-                                    int damageShielded = (int) (multipliedDamage * 0.75);
-                                    if (damageShielded > 0) {
-                                        multipliedDamage -= damageShielded; // reduce damage taken
-                                        int expGained = player.getHpCurrent() > damageShielded ? (int) (damageShielded * 0.35) :
-                                            (int) (player.getHpCurrent() * 0.35);
-                                        expGained = expGained < 1 ? 1 : expGained;
-                                        player.addExperience(SkillType.DEFENSE, expGained);
-                                    }
-                                }
-                                player.damage(multipliedDamage);
-                                int expGain = player.getHpCurrent() > multipliedDamage ? (int) (multipliedDamage * 0.25) :
-                                    (int) (player.getHpCurrent() * 0.25);
-                                expGain = expGain < 1 ? 1 : expGain;
-                                player.addExperience(SkillType.CONSTITUTION, expGain);
-                            }
-                        }
-                    }
-                }
+                World.getInstance().forEachNearbyPlayer(location, WorldConstants.WORLD_DRAW_DISTANCE, visitor);
             }
             
         } while (curIndex != endingIndex);
@@ -0,0 +1,161 @@
+package org.unallied.mmoserver.monsters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A list of monsters that can spawn, each with a weight.  A random monster
+ * is picked in constant time no matter how many monsters are in the table,
+ * using Vose's alias method:  each slot of the table holds a monster, the
+ * probability of keeping it, and another monster (its alias) to use instead.
+ * <br /><br />
+ * Tables are built once and never modified, so they can be shared by any
+ * number of threads and regions.
+ * @author Alexandria
+ *
+ */
+public class SpawnTable {
+
+    /** The number of difficulty levels that share a table. */
+    public static final int DIFFICULTY_BAND_SIZE = 10;
+
+    /** The highest difficulty returned by the world. */
+    public static final int MAX_DIFFICULTY = 120;
+
+    /** The number of difficulty bands. */
+    public static final int BAND_COUNT = MAX_DIFFICULTY / DIFFICULTY_BAND_SIZE + 1;
+
+    /**
+     * How far a monster's level can be from the middle of a band for the
+     * monster to spawn in that band.
+     */
+    private static final int LEVEL_RANGE = DIFFICULTY_BAND_SIZE;
+
+    private final ServerMonsterData[] monsters;
+
+    /** The probability of picking monsters[i] instead of monsters[alias[i]]. */
+    private final double[] probability;
+
+    private final int[] alias;
+
+    /**
+     * Creates a table from a list of monsters and their weights.
+     * @param monsters The monsters that can spawn.
+     * @param weights The weight of each monster.  Must be positive.
+     */
+    public SpawnTable(ServerMonsterData[] monsters, double[] weights) {
+        int n = monsters.length;
+        this.monsters = monsters;
+        probability = new double[n];
+        alias = new int[n];
+
+        double total = 0;
+        for (int i=0; i < n; ++i) {
+            total += weights[i];
+        }
+
+        // Scale the weights so that the average is 1, then pair each slot
+        // that is under 1 with a slot that is over 1
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i=0; i < n; ++i) {
+            scaled[i] = weights[i] * n / total;
+            if (scaled[i] < 1.0) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+            if (scaled[more] < 1.0) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+        // Anything left over is only off from 1 by rounding error
+        while (largeCount > 0) {
+            probability[large[--largeCount]] = 1.0;
+        }
+        while (smallCount > 0) {
+            probability[small[--smallCount]] = 1.0;
+        }
+    }
+
+    /**
+     * Picks a random monster from this table.
+     * @param random The random number generator to use.
+     * @return monsterData, or null if the table is empty.
+     */
+    public ServerMonsterData next(Random random) {
+        if (monsters.length == 0) {
+            return null;
+        }
+        int i = random.nextInt(monsters.length);
+        return random.nextDouble() < probability[i] ? monsters[i] : monsters[alias[i]];
+    }
+
+    /**
+     * Returns the number of monsters in this table.
+     * @return size
+     */
+    public int size() {
+        return monsters.length;
+    }
+
+    /**
+     * Returns the difficulty band that a difficulty is in.
+     * @param difficulty The difficulty from the world.
+     * @return band, from 0 to {@link #BAND_COUNT} - 1.
+     */
+    public static int getBand(int difficulty) {
+        int band = difficulty / DIFFICULTY_BAND_SIZE;
+        return band < 0 ? 0 : band >= BAND_COUNT ? BAND_COUNT - 1 : band;
+    }
+
+    /**
+     * Creates a table for each difficulty band.  Monsters whose level is
+     * close to the middle of a band can spawn in that band, and the closer
+     * they are the more often they spawn.  If no monster is close enough to
+     * a band, then every monster can spawn in it equally often.
+     * @param monsters The monsters that can spawn.
+     * @return a table for each band.
+     */
+    public static SpawnTable[] createBands(List<ServerMonsterData> monsters) {
+        SpawnTable[] result = new SpawnTable[BAND_COUNT];
+        for (int band=0; band < BAND_COUNT; ++band) {
+            int middle = band * DIFFICULTY_BAND_SIZE + DIFFICULTY_BAND_SIZE / 2;
+            List<ServerMonsterData> eligible = new ArrayList<ServerMonsterData>();
+            List<Double> weights = new ArrayList<Double>();
+            for (ServerMonsterData monster : monsters) {
+                int distance = Math.abs(monster.getLevel() - middle);
+                if (distance <= LEVEL_RANGE) {
+                    eligible.add(monster);
+                    weights.add((double) (LEVEL_RANGE + 1 - distance));
+                }
+            }
+            if (eligible.isEmpty()) {
+                eligible.addAll(monsters);
+                for (int i=0; i < monsters.size(); ++i) {
+                    weights.add(1.0);
+                }
+            }
+            double[] weightArray = new double[weights.size()];
+            for (int i=0; i < weightArray.length; ++i) {
+                weightArray[i] = weights.get(i);
+            }
+            result[band] = new SpawnTable(eligible.toArray(new ServerMonsterData[eligible.size()]),
+                    weightArray);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,74 @@
+package org.unallied.mmoserver.net;
+
+import java.nio.ByteOrder;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.unallied.mmocraft.net.Packet;
+
+/**
+ * Several packets which are sent to the client together as a single write.
+ * The client still receives them as separate packets, because each packet
+ * keeps its own length header.
+ * @author Alexandria
+ *
+ */
+public class BatchedPacket implements EncodablePacket {
+
+    /** The packets to send, in order. */
+    private final Packet[] packets;
+
+    /** The number of bytes in all packets, including their length headers. */
+    private final int size;
+
+    private Runnable onSend = null;
+
+    /**
+     * Creates a batch of packets.  The packets are sent in order.
+     * @param packets The packets to send.
+     * @param count The number of packets to send.
+     */
+    public BatchedPacket(Packet[] packets, int count) {
+        this.packets = new Packet[count];
+        int size = 0;
+        for (int i=0; i < count; ++i) {
+            this.packets[i] = packets[i];
+            size += packets[i] instanceof EncodablePacket
+                    ? ((EncodablePacket) packets[i]).getSize() : packets[i].getBytes().length;
+        }
+        this.size = size;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public void writeTo(IoBuffer out) {
+        for (int i=0; i < packets.length; ++i) {
+            if (packets[i] instanceof EncodablePacket) {
+                ((EncodablePacket) packets[i]).writeTo(out);
+            } else {
+                out.put(packets[i].getBytes());
+            }
+        }
+    }
+
+    @Override
+    public byte[] getBytes() {
+        IoBuffer out = IoBuffer.wrap(new byte[size]);
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        writeTo(out);
+        return out.array();
+    }
+
+    @Override
+    public Runnable getOnSend() {
+        return onSend;
+    }
+
+    @Override
+    public void setOnSend(Runnable onSend) {
+        this.onSend = onSend;
+    }
+}
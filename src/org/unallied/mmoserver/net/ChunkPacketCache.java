@@ -0,0 +1,165 @@
+package org.unallied.mmoserver.net;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.unallied.mmocraft.net.Packet;
+import org.unallied.mmoserver.constants.ServerConstants;
+import org.unallied.mmoserver.server.ServerChunk;
+import org.unallied.mmoserver.server.World;
+
+/**
+ * Caches compressed chunk packets so that chunks which have not changed are
+ * not copied and compressed again for every request.  Each packet is stored
+ * with the version of the chunk it was created from, and is thrown out once
+ * the chunk's version changes.  The least recently used packets are evicted
+ * once the cache holds more than {@link ServerConstants#CHUNK_CACHE_SIZE}
+ * bytes.
+ * @author Alexandria
+ *
+ */
+public class ChunkPacketCache {
+
+    /**
+     * A cached chunk packet.
+     * @author Alexandria
+     *
+     */
+    private static class Entry {
+        /** The version of the chunk when the packet was created. */
+        private final int version;
+
+        private final Packet packet;
+
+        /** The number of bytes in the packet. */
+        private final int size;
+
+        private Entry(int version, Packet packet) {
+            this.version = version;
+            this.packet = packet;
+            this.size = packet instanceof EncodablePacket
+                    ? ((EncodablePacket) packet).getSize() : packet.getBytes().length;
+        }
+    }
+
+    /** All cached packets by chunk id, ordered from least to most recently used. */
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+    /** The total number of bytes in all cached packets. */
+    private long size = 0;
+
+    /** The number of requests that were served from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of requests that had to create a new packet. */
+    private final AtomicLong misses = new AtomicLong();
+
+    private ChunkPacketCache() {
+    }
+
+    private static class ChunkPacketCacheHolder {
+        private static final ChunkPacketCache instance = new ChunkPacketCache();
+    }
+
+    public static ChunkPacketCache getInstance() {
+        return ChunkPacketCacheHolder.instance;
+    }
+
+    /**
+     * Returns a packet containing all of the blocks that make up a chunk.
+     * The packet is created only if there is no cached packet for the
+     * chunk's current version.
+     * @param chunkId The unique chunk ID that identifies this chunk
+     * @return Packet containing [header][chunkId][blocks], or null if the
+     *         chunk does not exist.
+     */
+    public Packet getChunk(long chunkId) {
+        World world = World.getInstance();
+        int version = world.getChunkVersion(chunkId);
+        synchronized (entries) {
+            Entry entry = entries.get(chunkId);
+            if (entry != null && entry.version == version) {
+                hits.incrementAndGet();
+                return entry.packet;
+            }
+        }
+        misses.incrementAndGet();
+
+        // The copy knows exactly which version it is, even if a block changed
+        // since the version above was read
+        byte[] blocks = new byte[ServerChunk.SIZE];
+        int copied = world.copyChunk(chunkId, blocks);
+        if (copied == -1) {
+            return null;
+        }
+        Packet packet = PacketCreator.createChunk(chunkId, blocks);
+        put(chunkId, new Entry(copied, packet));
+        return packet;
+    }
+
+    /**
+     * Adds a packet to the cache, evicting the least recently used packets
+     * if the cache is full.
+     * @param chunkId The unique chunk ID that identifies this chunk
+     * @param entry The packet to add
+     */
+    private void put(long chunkId, Entry entry) {
+        synchronized (entries) {
+            Entry old = entries.get(chunkId);
+            if (old != null) {
+                if (old.version - entry.version > 0) {
+                    return; // A newer packet was added while we were creating this one
+                }
+                size -= old.size;
+            }
+            entries.put(chunkId, entry);
+            size += entry.size;
+
+            Iterator<Map.Entry<Long, Entry>> iter = entries.entrySet().iterator();
+            while (size > ServerConstants.CHUNK_CACHE_SIZE && iter.hasNext()) {
+                Entry eldest = iter.next().getValue();
+                if (eldest == entry) {
+                    break;
+                }
+                size -= eldest.size;
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of chunk requests that were served from the cache.
+     * @return hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of chunk requests that had to create a new packet.
+     * @return misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the total number of bytes of all cached packets.
+     * @return size
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (entries) {
+            return "ChunkPacketCache [hits=" + getHits() + ", misses=" + getMisses()
+                    + ", entries=" + entries.size() + ", bytes=" + size + "]";
+        }
+    }
+}
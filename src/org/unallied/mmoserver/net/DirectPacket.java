@@ -0,0 +1,84 @@
+package org.unallied.mmoserver.net;
+
+import java.nio.ByteOrder;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.unallied.mmocraft.net.RecvOpcode;
+
+/**
+ * A single packet whose payload is written straight into the buffer that is
+ * sent to the client.  The payload's size must be known when the packet is
+ * created, and the payload must not change afterwards, because the packet
+ * may be written any number of times.
+ * @author Alexandria
+ *
+ */
+public abstract class DirectPacket implements EncodablePacket {
+
+    /** The number of bytes in a packet's length header. */
+    public static final int LENGTH_SIZE = 4;
+
+    /** The number of bytes in a packet's opcode. */
+    public static final int OPCODE_SIZE = 2;
+
+    private final RecvOpcode opcode;
+
+    /** The number of bytes written by {@link #writePayload(IoBuffer)}. */
+    private final int payloadSize;
+
+    private Runnable onSend = null;
+
+    /**
+     * Creates a packet.
+     * @param opcode The packet's opcode.
+     * @param payloadSize The exact number of bytes after the opcode.
+     */
+    protected DirectPacket(RecvOpcode opcode, int payloadSize) {
+        this.opcode = opcode;
+        this.payloadSize = payloadSize;
+    }
+
+    /**
+     * Writes everything after the opcode.
+     * @param out A little-endian buffer with enough room for the payload.
+     */
+    protected abstract void writePayload(IoBuffer out);
+
+    /**
+     * Returns the opcode of this packet.
+     * @return opcode
+     */
+    public RecvOpcode getOpcode() {
+        return opcode;
+    }
+
+    @Override
+    public int getSize() {
+        return LENGTH_SIZE + OPCODE_SIZE + payloadSize;
+    }
+
+    @Override
+    public void writeTo(IoBuffer out) {
+        out.putInt(OPCODE_SIZE + payloadSize);
+        out.putShort((short) opcode.getValue());
+        writePayload(out);
+    }
+
+    @Override
+    public byte[] getBytes() {
+        IoBuffer out = IoBuffer.wrap(new byte[getSize()]);
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        writeTo(out);
+        return out.array();
+    }
+
+    @Override
+    public Runnable getOnSend() {
+        return onSend;
+    }
+
+    @Override
+    public void setOnSend(Runnable onSend) {
+        this.onSend = onSend;
+    }
+}
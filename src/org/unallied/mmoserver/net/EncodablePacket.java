@@ -0,0 +1,29 @@
+package org.unallied.mmoserver.net;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.unallied.mmocraft.net.Packet;
+
+/**
+ * A packet which knows exactly how many bytes it takes, and can write
+ * itself straight into the buffer that is sent to the client.  This lets
+ * the encoder send it without building a byte[] first.
+ * @author Alexandria
+ *
+ */
+public interface EncodablePacket extends Packet {
+
+    /**
+     * Returns the number of bytes written by {@link #writeTo(IoBuffer)},
+     * including every length header.
+     * @return size
+     */
+    int getSize();
+
+    /**
+     * Writes this packet, including its length header, in the same form
+     * as {@link #getBytes()}.
+     * @param out A little-endian buffer with at least {@link #getSize()}
+     *            bytes remaining.
+     */
+    void writeTo(IoBuffer out);
+}
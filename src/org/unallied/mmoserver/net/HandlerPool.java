@@ -0,0 +1,172 @@
+package org.unallied.mmoserver.net;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of threads that runs packet handlers, so that handlers never run
+ * on the network threads.  Handlers that block (such as ones that wait for
+ * the database) are given their own pool so that they cannot hold up the
+ * rest of the game.
+ * <br /><br />
+ * The pool keeps track of how many handlers are waiting to run, how long
+ * they waited and how long they took.
+ * <br /><br />
+ * The pool's queue holds sessions waiting for a thread, not packets, and a
+ * session is never in it more than once, so it can't grow past the number of
+ * sessions.  Handlers never run on the thread that handed over the session;
+ * a session that floods the server is held back by its
+ * {@link SessionTaskQueue} instead.
+ * @author Alexandria
+ *
+ */
+public class HandlerPool {
+
+    private final String name;
+
+    private final ThreadPoolExecutor executor;
+
+    /** The number of handlers waiting to run. */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /** The most handlers that have been waiting to run at once. */
+    private final AtomicInteger maxQueued = new AtomicInteger();
+
+    /** The number of handlers that have run. */
+    private final AtomicLong completed = new AtomicLong();
+
+    /** The total time in nanoseconds that handlers waited before running. */
+    private final AtomicLong waitTime = new AtomicLong();
+
+    /** The longest time in nanoseconds that a handler waited before running. */
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    /** The total time in nanoseconds that handlers took to run. */
+    private final AtomicLong runTime = new AtomicLong();
+
+    /**
+     * Creates a pool of threads for running handlers.
+     * @param name The name of the pool, used for its threads and metrics.
+     * @param threads The number of threads in the pool.
+     */
+    public HandlerPool(final String name, int threads) {
+        this.name = name;
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, name + " Handler " + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Runs a task on one of the pool's threads.
+     * @param task The task to run.
+     */
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Records that a handler is waiting to run in this pool.
+     */
+    void queued() {
+        int count = queued.incrementAndGet();
+        int max = maxQueued.get();
+        while (count > max && !maxQueued.compareAndSet(max, count)) {
+            max = maxQueued.get();
+        }
+    }
+
+    /**
+     * Records that a handler has started running.
+     * @param wait The time in nanoseconds that the handler waited.
+     */
+    void started(long wait) {
+        queued.decrementAndGet();
+        waitTime.addAndGet(wait);
+        long max = maxWaitTime.get();
+        while (wait > max && !maxWaitTime.compareAndSet(max, wait)) {
+            max = maxWaitTime.get();
+        }
+    }
+
+    /**
+     * Records that a handler has finished running.
+     * @param run The time in nanoseconds that the handler took.
+     */
+    void finished(long run) {
+        runTime.addAndGet(run);
+        completed.incrementAndGet();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of handlers waiting to run.
+     * @return queueDepth
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Returns the most handlers that have been waiting to run at once.
+     * @return maxQueueDepth
+     */
+    public int getMaxQueueDepth() {
+        return maxQueued.get();
+    }
+
+    /**
+     * Returns the number of handlers that have run.
+     * @return completed
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Returns the average time in nanoseconds that handlers waited to run.
+     * @return averageWaitTime
+     */
+    public long getAverageWaitTime() {
+        long count = completed.get();
+        return count == 0 ? 0 : waitTime.get() / count;
+    }
+
+    /**
+     * Returns the longest time in nanoseconds that a handler waited to run.
+     * @return maxWaitTime
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    /**
+     * Returns the average time in nanoseconds that handlers took to run.
+     * @return averageRunTime
+     */
+    public long getAverageRunTime() {
+        long count = completed.get();
+        return count == 0 ? 0 : runTime.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return name + " handlers: " + getCompleted() + " run, " + getQueueDepth() + " queued ("
+                + getMaxQueueDepth() + " max), " + getAverageWaitTime() / 1000 + " us average wait ("
+                + getMaxWaitTime() / 1000 + " us max), " + getAverageRunTime() / 1000 + " us average run";
+    }
+}
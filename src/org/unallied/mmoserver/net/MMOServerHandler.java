@@ -8,16 +8,23 @@ import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
 import org.unallied.mmocraft.tools.PrintError;
-import org.unallied.mmocraft.tools.input.ByteArrayByteStream;
-import org.unallied.mmocraft.tools.input.GenericSeekableLittleEndianAccessor;
 import org.unallied.mmocraft.tools.input.SeekableLittleEndianAccessor;
 import org.unallied.mmoserver.client.Client;
 import org.unallied.mmoserver.net.handlers.ServerPacketHandler;
 import org.unallied.mmoserver.server.Server;
 
 
+/**
+ * Receives events from the network threads.  Packets are handed to the
+ * packet's {@link HandlerPool} so that the network threads never wait for
+ * a handler.  Each session's packets are still handled one at a time, in
+ * the order that they arrived (see {@link SessionTaskQueue}).
+ */
 public class MMOServerHandler extends IoHandlerAdapter {
 
+    /** The session attribute that holds the session's {@link SessionTaskQueue}. */
+    private static final String TASK_QUEUE_KEY = "TASK_QUEUE";
+
     private PacketProcessor processor;
     
     public MMOServerHandler(PacketProcessor processor) {
@@ -47,10 +54,30 @@ public class MMOServerHandler extends IoHandlerAdapter {
         Client client = new Client(session);
         session.write(PacketCreator.getWelcome());
         session.setAttribute(Client.CLIENT_KEY, client);
+        session.setAttribute(TASK_QUEUE_KEY, new SessionTaskQueue(session));
     }
     
     @Override
-    public void sessionClosed(IoSession session) {
+    public void sessionClosed(final IoSession session) {
+        SessionTaskQueue tasks = (SessionTaskQueue) session.getAttribute(TASK_QUEUE_KEY);
+        if (tasks == null) {
+            disconnect(session);
+        } else {
+            // Disconnect after the packets that are still waiting to be handled
+            tasks.execute(processor.getGamePool(), new Runnable() {
+                @Override
+                public void run() {
+                    disconnect(session);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Disconnects the client of a session which has been closed.
+     * @param session The session that was closed
+     */
+    private void disconnect(IoSession session) {
         synchronized (session) {
             Client client = (Client) session.getAttribute(Client.CLIENT_KEY);
             if (client != null) {
@@ -76,23 +103,29 @@ public class MMOServerHandler extends IoHandlerAdapter {
      * Handle a message from the client
      */
     public void messageReceived(IoSession session, Object message) {
-        byte[] content = (byte[]) message;
-        SeekableLittleEndianAccessor slea = 
-                new GenericSeekableLittleEndianAccessor(
-                        new ByteArrayByteStream(content));
+        final SeekableLittleEndianAccessor slea = (SeekableLittleEndianAccessor) message;
         short packetOpcode = slea.readShort();
-        Client client = (Client) session.getAttribute(Client.CLIENT_KEY);
+        final Client client = (Client) session.getAttribute(Client.CLIENT_KEY);
+        SessionTaskQueue tasks = (SessionTaskQueue) session.getAttribute(TASK_QUEUE_KEY);
         
         // Get the handler for this opcode. (e.g. LOGIN, REGISTER, LOGOUT, ATTACK, ...)
-        ServerPacketHandler packetHandler = processor.getHandler(packetOpcode);
+        final ServerPacketHandler packetHandler = processor.getHandler(packetOpcode);
         
-        if (packetHandler != null && packetHandler.validState(client)) {
-            try {
-                packetHandler.handlePacket(slea, client);
-            } catch (Throwable t) {
-                // Uh oh!  We failed to handle the packet!
-                t.printStackTrace();
-            }
+        if (packetHandler != null && tasks != null) {
+            tasks.execute(processor.getPool(packetOpcode), new Runnable() {
+                @Override
+                public void run() {
+                    // The state is checked here because earlier packets may change it
+                    if (packetHandler.validState(client)) {
+                        try {
+                            packetHandler.handlePacket(slea, client);
+                        } catch (Throwable t) {
+                            // Uh oh!  We failed to handle the packet!
+                            t.printStackTrace();
+                        }
+                    }
+                }
+            });
         }
     }
     
@@ -0,0 +1,166 @@
+package org.unallied.mmoserver.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+import org.unallied.mmocraft.tools.input.SeekableLittleEndianAccessor;
+
+/**
+ * Reads a single packet received from a client.  This reads the packet's
+ * bytes directly, so each packet needs only the packet's bytes and this
+ * accessor, instead of a stream and an accessor wrapped around the stream.
+ * Values are read the same way as by the generic accessors:  in
+ * little-endian order, with strings read one byte per character.
+ * @author Alexandria
+ *
+ */
+public class PacketAccessor implements SeekableLittleEndianAccessor {
+
+    private final byte[] data;
+
+    /** The index of the next byte to read. */
+    private int position = 0;
+
+    /** The number of bytes that have been read. */
+    private long bytesRead = 0;
+
+    /**
+     * Creates an accessor which reads a packet from the beginning.
+     * @param data The packet, starting with its opcode.
+     */
+    public PacketAccessor(byte[] data) {
+        this.data = data;
+    }
+
+    @Override
+    public byte readByte() {
+        ++bytesRead;
+        return data[position++];
+    }
+
+    @Override
+    public short readShort() {
+        bytesRead += 2;
+        int result = (data[position] & 0xFF) | (data[position+1] & 0xFF) << 8;
+        position += 2;
+        return (short) result;
+    }
+
+    @Override
+    public int readInt() {
+        bytesRead += 4;
+        int result = (data[position] & 0xFF) | (data[position+1] & 0xFF) << 8
+                | (data[position+2] & 0xFF) << 16 | (data[position+3] & 0xFF) << 24;
+        position += 4;
+        return result;
+    }
+
+    @Override
+    public long readLong() {
+        long low = readInt() & 0xFFFFFFFFL;
+        long high = readInt() & 0xFFFFFFFFL;
+        return low | high << 32;
+    }
+
+    @Override
+    public void skip(int n) {
+        position += n;
+    }
+
+    @Override
+    public byte[] read(int n) {
+        byte[] result = new byte[n];
+        System.arraycopy(data, position, result, 0, n);
+        position += n;
+        bytesRead += n;
+        return result;
+    }
+
+    @Override
+    public float readFloat() {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    @Override
+    public String readAsciiString(int n) {
+        char[] result = new char[n];
+        for (int i=0; i < n; ++i) {
+            result[i] = (char) readByte();
+        }
+        return new String(result);
+    }
+
+    @Override
+    public String readNullTerminatedAsciiString() {
+        StringBuilder result = new StringBuilder();
+        byte b;
+        while ((b = readByte()) != 0) {
+            result.append((char) b);
+        }
+        return result.toString();
+    }
+
+    @Override
+    public String readPrefixedAsciiString() {
+        return readAsciiString(readShort());
+    }
+
+    /**
+     * Reads a string whose length is written before it, 7 bits at a time.
+     * @return string
+     */
+    public String read7BitPrefixedAsciiString() {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = readByte();
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return readAsciiString(length);
+    }
+
+    @Override
+    public Object readObject() {
+        ByteArrayInputStream in = new ByteArrayInputStream(data, position, data.length - position);
+        try {
+            Object result = new ObjectInputStream(in).readObject();
+            int read = data.length - position - in.available();
+            position += read;
+            bytesRead += read;
+            return result;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public long available() {
+        return data.length - position;
+    }
+
+    @Override
+    public void seek(long p) {
+        position = (int) p;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+}
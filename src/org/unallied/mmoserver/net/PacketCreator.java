@@ -2,6 +2,7 @@ package org.unallied.mmoserver.net;
 
 import java.util.Collection;
 
+import org.apache.mina.core.buffer.IoBuffer;
 import org.iq80.snappy.Snappy;
 import org.unallied.mmocraft.BlockType;
 import org.unallied.mmocraft.Player;
@@ -105,18 +106,32 @@ public class PacketCreator {
     }
 
     /**
-     * A packet containing all of the blocks that make up a chunk.
+     * A packet containing all of the blocks that make up a chunk.  Packets
+     * are cached until the chunk changes.
      * @param chunkId The unique chunk ID that identifies this chunk
      * @return Packet containing [header][chunkId][blocks]
      */
     public static Packet getChunk(long chunkId) {
-        PacketLittleEndianWriter writer = new PacketLittleEndianWriter();
-        
-        writer.write(RecvOpcode.CHUNK);
-        writer.writeLong(chunkId);
-        writer.write(Snappy.compress(World.getInstance().getChunk(chunkId)));
-        
-        return writer.getPacket();
+        return ChunkPacketCache.getInstance().getChunk(chunkId);
+    }
+    
+    /**
+     * Creates a packet containing all of the blocks that make up a chunk.
+     * Use {@link #getChunk(long)} unless the packet should not be cached.
+     * @param chunkId The unique chunk ID that identifies this chunk
+     * @param blocks The blocks of the chunk
+     * @return Packet containing [header][chunkId][blocks]
+     */
+    public static Packet createChunk(final long chunkId, byte[] blocks) {
+        final byte[] compressed = Snappy.compress(blocks);
+        
+        return new DirectPacket(RecvOpcode.CHUNK, 8 + compressed.length) {
+            @Override
+            protected void writePayload(IoBuffer out) {
+                out.putLong(chunkId);
+                out.put(compressed);
+            }
+        };
     }
 
     /**
@@ -126,18 +141,28 @@ public class PacketCreator {
      * @return packet
      */
     public static Packet getPlayerMovement(Player player) {
-        PacketLittleEndianWriter writer = new PacketLittleEndianWriter();
-        
-        writer.write(RecvOpcode.PLAYER_MOVEMENT);
-        writer.writeInt(player.getId());
-        writer.write(player.getLocation().getBytes());
-        writer.writeShort(player.getState().getId());
-        writer.write((byte)player.getDirection().ordinal()); // right is 0, left is 1
-        writer.write(player.getVelocity().getBytes());
-        writer.writeFloat(player.getFallSpeed());
-        writer.writeFloat(player.getInitialVelocity());
-
-        return writer.getPacket();
+        // Everything is read now, because the packet may be written later
+        final int id = player.getId();
+        final byte[] location = player.getLocation().getBytes();
+        final short state = (short) player.getState().getId();
+        final byte direction = (byte)player.getDirection().ordinal(); // right is 0, left is 1
+        final byte[] velocity = player.getVelocity().getBytes();
+        final float fallSpeed = player.getFallSpeed();
+        final float initialVelocity = player.getInitialVelocity();
+        
+        return new DirectPacket(RecvOpcode.PLAYER_MOVEMENT,
+                4 + location.length + 2 + 1 + velocity.length + 4 + 4) {
+            @Override
+            protected void writePayload(IoBuffer out) {
+                out.putInt(id);
+                out.put(location);
+                out.putShort(state);
+                out.put(direction);
+                out.put(velocity);
+                out.putFloat(fallSpeed);
+                out.putFloat(initialVelocity);
+            }
+        };
     }
 
     /**
@@ -147,13 +172,16 @@ public class PacketCreator {
      * @return packet
      */
     public static Packet getPlayerDirection(ServerPlayer player) {
-        PacketLittleEndianWriter writer = new PacketLittleEndianWriter();
-        
-        writer.write(RecvOpcode.PLAYER_DIRECTION);
-        writer.writeInt(player.getId());
-        writer.write((byte)player.getDirection().ordinal()); // right is 0, left is 1
-        
-        return writer.getPacket();
+        final int id = player.getId();
+        final byte direction = (byte)player.getDirection().ordinal(); // right is 0, left is 1
+        
+        return new DirectPacket(RecvOpcode.PLAYER_DIRECTION, 5) {
+            @Override
+            protected void writePayload(IoBuffer out) {
+                out.putInt(id);
+                out.put(direction);
+            }
+        };
     }
     
     /**
@@ -163,12 +191,14 @@ public class PacketCreator {
      * @return packet
      */
     public static Packet getMonsterMovement(Monster monster) {
-        PacketLittleEndianWriter writer = new PacketLittleEndianWriter();
-        
-        writer.write(RecvOpcode.MONSTER_MOVEMENT);
-        writer.write(monster.getMovement());
-        
-        return writer.getPacket();
+        final byte[] movement = monster.getMovement();
+        
+        return new DirectPacket(RecvOpcode.MONSTER_MOVEMENT, movement.length) {
+            @Override
+            protected void writePayload(IoBuffer out) {
+                out.put(movement);
+            }
+        };
     }
     
     /**
@@ -178,13 +208,16 @@ public class PacketCreator {
      * @return packet
      */
     public static Packet getMonsterDirection(Monster monster) {
-        PacketLittleEndianWriter writer = new PacketLittleEndianWriter();
-        
-        writer.write(RecvOpcode.MONSTER_DIRECTION);
-        writer.writeInt(monster.getId());
-        writer.write((byte)monster.getDirection().ordinal()); // right is 0, left is 1
-        
-        return writer.getPacket();
+        final int id = monster.getId();
+        final byte direction = (byte)monster.getDirection().ordinal(); // right is 0, left is 1
+        
+        return new DirectPacket(RecvOpcode.MONSTER_DIRECTION, 5) {
+            @Override
+            protected void writePayload(IoBuffer out) {
+                out.putInt(id);
+                out.put(direction);
+            }
+        };
     }
     
     /**
@@ -195,12 +228,14 @@ public class PacketCreator {
      * @return packet
      */
     public static Packet getPlayerDisconnect(ServerPlayer player) {
-        PacketLittleEndianWriter writer = new PacketLittleEndianWriter();
-        
-        writer.write(RecvOpcode.PLAYER_DISCONNECT);
-        writer.writeInt(player.getId());
-        
-        return writer.getPacket();
+        final int id = player.getId();
+        
+        return new DirectPacket(RecvOpcode.PLAYER_DISCONNECT, 4) {
+            @Override
+            protected void writePayload(IoBuffer out) {
+                out.putInt(id);
+            }
+        };
     }
 
     /**
@@ -340,16 +375,38 @@ public class PacketCreator {
         x = x >= 0 ? x % WorldConstants.WORLD_WIDTH : WorldConstants.WORLD_WIDTH + x;
         y = y >= 0 ? y : 0;
         y = y >= WorldConstants.WORLD_HEIGHT ? WorldConstants.WORLD_HEIGHT - 1 : y;
-		PacketLittleEndianWriter writer = new PacketLittleEndianWriter();
+        final long blockX = x;
+        final long blockY = y;
+        final byte value = newBlockType.getValue();
 		
-		writer.write(RecvOpcode.BLOCK_CHANGED);
-		writer.writeLong(x);
-		writer.writeLong(y);
-		writer.write(newBlockType.getValue());
-		
-		return writer.getPacket();
+        return new DirectPacket(RecvOpcode.BLOCK_CHANGED, 17) {
+            @Override
+            protected void writePayload(IoBuffer out) {
+                out.putLong(blockX);
+                out.putLong(blockY);
+                out.put(value);
+            }
+        };
 	}
 
+    /**
+     * Returns the changes to several blocks as a single packet.  The client
+     * receives a {@link #getBlockChanged(long, long, BlockType)} packet for
+     * each block.
+     * @param xs The x coordinate of each block.
+     * @param ys The y coordinate of each block.
+     * @param values The value of each block's new type.
+     * @param count The number of blocks that changed.
+     * @return packet
+     */
+    public static Packet getBlocksChanged(int[] xs, int[] ys, byte[] values, int count) {
+        Packet[] packets = new Packet[count];
+        for (int i=0; i < count; ++i) {
+            packets[i] = getBlockChanged(xs[i], ys[i], BlockType.fromValue(values[i]));
+        }
+        return new BatchedPacket(packets, count);
+    }
+
 	/**
 	 * Creates a pong packet for a response to a client ping packet.  Helps the
 	 * client know its latency and the time difference between client and server.
@@ -357,14 +414,16 @@ public class PacketCreator {
 	 *                   Contains the client's time that they sent this packet.
 	 * @return packet
 	 */
-    public static Packet getPong(long clientTime) {
-        PacketLittleEndianWriter writer = new PacketLittleEndianWriter();
-        
-        writer.write(RecvOpcode.PONG);
-        writer.writeLong(clientTime);
-        writer.writeLong(System.currentTimeMillis());
-        
-        return writer.getPacket();
+    public static Packet getPong(final long clientTime) {
+        final long serverTime = System.currentTimeMillis();
+        
+        return new DirectPacket(RecvOpcode.PONG, 16) {
+            @Override
+            protected void writePayload(IoBuffer out) {
+                out.putLong(clientTime);
+                out.putLong(serverTime);
+            }
+        };
     }
     
     /**
@@ -392,16 +451,19 @@ public class PacketCreator {
      * @return packet
      */
     public static Packet getPvPPlayerDamaged(ServerPlayer source,
-            ServerPlayer damagedPlayer, int damageDealt, int hpCurrent) {
-        PacketLittleEndianWriter writer = new PacketLittleEndianWriter();
-        
-        writer.write(RecvOpcode.PVP_PLAYER_DAMAGED);
-        writer.writeInt(source.getId());
-        writer.writeInt(damagedPlayer.getId());
-        writer.writeInt(damageDealt);
-        writer.writeInt(hpCurrent);
+            ServerPlayer damagedPlayer, final int damageDealt, final int hpCurrent) {
+        final int sourceId = source.getId();
+        final int damagedId = damagedPlayer.getId();
 
-        return writer.getPacket();
+        return new DirectPacket(RecvOpcode.PVP_PLAYER_DAMAGED, 16) {
+            @Override
+            protected void writePayload(IoBuffer out) {
+                out.putInt(sourceId);
+                out.putInt(damagedId);
+                out.putInt(damageDealt);
+                out.putInt(hpCurrent);
+            }
+        };
     }
 
     /**
@@ -413,20 +475,26 @@ public class PacketCreator {
      * @return packet
      */
     public static Packet getPlayerDamaged(ServerPlayer damagedPlayer, 
-            int damageDealt, int hpCurrent) {
-        PacketLittleEndianWriter writer = new PacketLittleEndianWriter();
-        
-        writer.write(RecvOpcode.PLAYER_DAMAGED);
-        writer.writeInt(damagedPlayer.getId());
-        writer.writeInt(damageDealt);
-        writer.writeInt(hpCurrent);
-        
-        return writer.getPacket();
+            final int damageDealt, final int hpCurrent) {
+        final int damagedId = damagedPlayer.getId();
+        
+        return new DirectPacket(RecvOpcode.PLAYER_DAMAGED, 12) {
+            @Override
+            protected void writePayload(IoBuffer out) {
+                out.putInt(damagedId);
+                out.putInt(damageDealt);
+                out.putInt(hpCurrent);
+            }
+        };
     }
     
     /**
      * Creates a monster damaged packet which informs the client of who attacked
      * the monster and the amount of damage dealt.
+     * <br /><br />
+     * A null source with 0 HP is also used to remove a monster which has left
+     * a player's view, because the client removes a monster with 0 HP as if it
+     * had died.  See {@link org.unallied.mmoserver.server.AreaOfInterest}.
      * @param source The source of the damage.  This is the player that attacked the monster.
      * @param damagedMonster The damaged monster.
      * @param damageDealt The amount of damage inflicted.
@@ -434,16 +502,19 @@ public class PacketCreator {
      * @return packet
      */
     public static Packet getMonsterDamaged(ServerPlayer source, 
-            ServerMonster damagedMonster, int damageDealt, int hpCurrent) {
-        PacketLittleEndianWriter writer = new PacketLittleEndianWriter();
-        
-        writer.write(RecvOpcode.MONSTER_DAMAGED);
-        writer.writeInt(source == null ? -1 : source.getId());
-        writer.writeInt(damagedMonster.getId());
-        writer.writeInt(damageDealt);
-        writer.writeInt(hpCurrent);
-        
-        return writer.getPacket();
+            ServerMonster damagedMonster, final int damageDealt, final int hpCurrent) {
+        final int sourceId = source == null ? -1 : source.getId();
+        final int damagedId = damagedMonster.getId();
+        
+        return new DirectPacket(RecvOpcode.MONSTER_DAMAGED, 16) {
+            @Override
+            protected void writePayload(IoBuffer out) {
+                out.putInt(sourceId);
+                out.putInt(damagedId);
+                out.putInt(damageDealt);
+                out.putInt(hpCurrent);
+            }
+        };
     }
     
     /**
@@ -1,9 +1,12 @@
 package org.unallied.mmoserver.net;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.unallied.mmocraft.net.SendOpcode;
+import org.unallied.mmoserver.constants.ServerConstants;
 import org.unallied.mmoserver.net.handlers.*;
 
 
@@ -13,6 +16,10 @@ import org.unallied.mmoserver.net.handlers.*;
  * Game packets are of the format:
  * [Length] [Header] [Payload]
  * Length is 4 bytes, header is 2 bytes
+ * <br /><br />
+ * Each handler runs in a {@link HandlerPool}.  Handlers that wait for the
+ * database or do a lot of computation have their own pools so that they
+ * don't hold up the rest of the game.
  * @author Faythless
  *
  */
@@ -20,6 +27,18 @@ public class PacketProcessor {
     
     private Map<Short, ServerPacketHandler> handlers = new HashMap<Short, ServerPacketHandler>();
     
+    /** The pool of each handler whose pool is not {@link #gamePool}. */
+    private Map<Short, HandlerPool> pools = new HashMap<Short, HandlerPool>();
+    
+    /** Runs most handlers. */
+    private final HandlerPool gamePool = new HandlerPool("Game", ServerConstants.GAME_HANDLER_THREADS);
+    
+    /** Runs handlers that wait for the database. */
+    private final HandlerPool blockingPool = new HandlerPool("Blocking", ServerConstants.BLOCKING_HANDLER_THREADS);
+    
+    /** Runs handlers that do a lot of computation. */
+    private final HandlerPool cpuPool = new HandlerPool("CPU", ServerConstants.CPU_HANDLER_THREADS);
+    
     private PacketProcessor() {
         init();
     }
@@ -45,6 +64,33 @@ public class PacketProcessor {
         return handlers.get(packetOpcode);
     }
     
+    /**
+     * Returns the pool that a handler runs in.
+     * @param packetOpcode The opcode of the handler
+     * @return pool
+     */
+    public HandlerPool getPool(short packetOpcode) {
+        HandlerPool pool = pools.get(packetOpcode);
+        return pool == null ? gamePool : pool;
+    }
+    
+    /**
+     * Returns the pool that runs most handlers.  Anything that must happen
+     * in order with a session's packets, but isn't a packet, runs here.
+     * @return gamePool
+     */
+    public HandlerPool getGamePool() {
+        return gamePool;
+    }
+    
+    /**
+     * Returns every pool that handlers run in.
+     * @return pools
+     */
+    public List<HandlerPool> getPools() {
+        return Arrays.asList(gamePool, blockingPool, cpuPool);
+    }
+    
     /**
      * Registers a handler with the processor.  Opcodes must be unique
      * @param opcode Unique opcode that identifies a handler
@@ -54,21 +100,34 @@ public class PacketProcessor {
         handlers.put((short)opcode.getValue(), handler);
     }
     
+    /**
+     * Registers a handler with the processor that runs in its own pool.
+     * Opcodes must be unique
+     * @param opcode Unique opcode that identifies a handler
+     * @param handler A handler that receives events when this opcode is received
+     * @param pool The pool that the handler runs in
+     */
+    public void registerHandler(SendOpcode opcode, AbstractServerPacketHandler handler, HandlerPool pool) {
+        registerHandler(opcode, handler);
+        pools.put((short)opcode.getValue(), pool);
+    }
+    
     /**
      * Resets all handlers to the default
      */
     public void reset() {
         handlers.clear();
+        pools.clear();
         
         registerHandler(SendOpcode.PING, new PingHandler());
-        registerHandler(SendOpcode.LOGON, new LogonHandler());
-        registerHandler(SendOpcode.CREDS, new CredsHandler());
+        registerHandler(SendOpcode.LOGON, new LogonHandler(), blockingPool);
+        registerHandler(SendOpcode.CREDS, new CredsHandler(), cpuPool);
         registerHandler(SendOpcode.CHUNK, new ChunkHandler());
         registerHandler(SendOpcode.PLAYER_MOVEMENT, new MovementHandler());
-        registerHandler(SendOpcode.REGISTER, new RegisterHandler());
+        registerHandler(SendOpcode.REGISTER, new RegisterHandler(), blockingPool);
         registerHandler(SendOpcode.CHAT_MESSAGE, new ChatMessageHandler());
         registerHandler(SendOpcode.ITEM_DATA, new ItemDataHandler());
-        registerHandler(SendOpcode.BLOCK_COLLISION, new CollisionHandler());
+        registerHandler(SendOpcode.BLOCK_COLLISION, new CollisionHandler(), cpuPool);
         registerHandler(SendOpcode.PLAYER_INFO, new PlayerInfoHandler());
         registerHandler(SendOpcode.PVP_TOGGLE, new PvPToggleHandler());
         registerHandler(SendOpcode.MONSTER_INFO, new MonsterInfoHandler());
@@ -0,0 +1,163 @@
+package org.unallied.mmoserver.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.session.IoSession;
+import org.unallied.mmoserver.constants.ServerConstants;
+
+/**
+ * Runs a session's packet handlers one at a time, in the order that the
+ * packets arrived, even though the handlers may run in different
+ * {@link HandlerPool}s.  At most one thread works on a session's tasks at a
+ * time.  When the next task belongs to another pool, the rest of the queue
+ * is handed to that pool.
+ * <br /><br />
+ * A session that sends packets faster than they can be handled stops being
+ * read once {@link ServerConstants#MAX_QUEUED_PACKETS} are waiting, and is
+ * read again once half of them have run.  This pushes back on the client
+ * through TCP instead of letting the queue grow without limit.
+ * @author Alexandria
+ *
+ */
+final class SessionTaskQueue {
+
+    /** The most tasks that are run before letting other sessions have the thread. */
+    private static final int MAX_BATCH = 16;
+
+    /**
+     * A task waiting to run.
+     * @author Alexandria
+     *
+     */
+    private static final class Task {
+        private final HandlerPool pool;
+        private final Runnable runnable;
+
+        /** The time in nanoseconds when the task was queued. */
+        private final long queuedTime;
+
+        private Task(HandlerPool pool, Runnable runnable) {
+            this.pool = pool;
+            this.runnable = runnable;
+            this.queuedTime = System.nanoTime();
+        }
+    }
+
+    private final IoSession session;
+
+    private final Queue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+
+    /** The number of tasks in {@link #tasks}. */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** True while the session is not being read.  Only changed while holding this. */
+    private volatile boolean suspended = false;
+
+    /** True while a pool has been given this queue's tasks to run. */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * Creates the task queue of a session.
+     * @param session The session whose packets are handled by this queue.
+     */
+    SessionTaskQueue(IoSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Runs a task after every task that was added before it.
+     * @param pool The pool to run the task in.
+     * @param runnable The task.
+     */
+    void execute(HandlerPool pool, Runnable runnable) {
+        pool.queued();
+        tasks.add(new Task(pool, runnable));
+        if (size.incrementAndGet() >= ServerConstants.MAX_QUEUED_PACKETS && !suspended) {
+            synchronized (this) {
+                // Checked again, because tasks may have run in the meantime
+                if (!suspended && size.get() >= ServerConstants.MAX_QUEUED_PACKETS) {
+                    suspended = true;
+                    session.suspendRead();
+                }
+            }
+        }
+        // A pool that was already draining may have run the task before the flag was taken
+        if (scheduled.compareAndSet(false, true) && hasMore()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Records that a task has run, reading the session again if enough of
+     * its tasks have run.
+     */
+    private void finished() {
+        if (size.decrementAndGet() <= ServerConstants.MAX_QUEUED_PACKETS / 2 && suspended) {
+            synchronized (this) {
+                if (suspended && size.get() <= ServerConstants.MAX_QUEUED_PACKETS / 2) {
+                    suspended = false;
+                    session.resumeRead();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands this queue to the pool of the next task.  This must only be
+     * called by the thread which set {@link #scheduled}, while there is a
+     * task in the queue.
+     */
+    private void schedule() {
+        final HandlerPool pool = tasks.peek().pool;
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain(pool);
+            }
+        });
+    }
+
+    /**
+     * Runs tasks until the queue is empty, the next task belongs to another
+     * pool, or a batch has been run.
+     * @param pool The pool that this is running in.
+     */
+    private void drain(HandlerPool pool) {
+        int count = 0;
+        while (hasMore()) {
+            Task task = tasks.peek();
+            if (task.pool != pool || count == MAX_BATCH) {
+                schedule();
+                return;
+            }
+            tasks.poll();
+            ++count;
+            long start = System.nanoTime();
+            pool.started(start - task.queuedTime);
+            try {
+                task.runnable.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+            pool.finished(System.nanoTime() - start);
+            finished();
+        }
+    }
+
+    /**
+     * Returns whether there are tasks left to run.  If there are none, the
+     * queue stops being scheduled.
+     * @return true if the caller should keep running tasks.
+     */
+    private boolean hasMore() {
+        if (!tasks.isEmpty()) {
+            return true;
+        }
+        scheduled.set(false);
+        // A task added before the flag was cleared would not have been scheduled
+        return !tasks.isEmpty() && scheduled.compareAndSet(false, true);
+    }
+}
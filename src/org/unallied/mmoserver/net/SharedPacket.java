@@ -0,0 +1,174 @@
+package org.unallied.mmoserver.net;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.unallied.mmocraft.net.Packet;
+import org.unallied.mmoserver.net.mina.DirectBufferPool;
+import org.unallied.mmoserver.net.mina.SharedBuffer;
+
+/**
+ * A packet which is sent to many clients, but only encoded once.  The first
+ * client to send it encodes the packet into a pooled buffer, and every client
+ * sends a read-only view of that same buffer, or copies it into a batch.
+ * <br /><br />
+ * The buffer is counted:  each view holds a reference until it has been sent,
+ * and whoever shared the packet holds one until {@link #release()} is called.
+ * The buffer is returned to the pool once every reference is released.
+ * @author Alexandria
+ *
+ */
+public class SharedPacket implements EncodablePacket {
+
+    private final Packet packet;
+
+    /** The bytes of a packet which can't write itself, or null. */
+    private final byte[] bytes;
+
+    /** The number of bytes in the encoded packet. */
+    private final int size;
+
+    /** The encoded packet, or null if it has not been encoded yet. */
+    private IoBuffer buffer = null;
+
+    /** A read-only view of {@link #buffer}, which is duplicated for each client. */
+    private IoBuffer readOnly = null;
+
+    /** The number of references.  Once this reaches 0 it never changes again. */
+    private int references = 1;
+
+    private SharedPacket(Packet packet) {
+        this.packet = packet;
+        if (packet instanceof EncodablePacket) {
+            bytes = null;
+            size = ((EncodablePacket) packet).getSize();
+        } else {
+            bytes = packet.getBytes();
+            size = bytes.length;
+        }
+    }
+
+    /**
+     * Shares a packet so that it is only encoded once, no matter how many
+     * clients it is sent to.  The result must be passed to {@link #release()}
+     * once it has been given to every client.
+     * @param packet The packet to share.  If this is already shared, then
+     *               another reference to it is returned.
+     * @return shared packet
+     */
+    public static SharedPacket share(Packet packet) {
+        if (packet instanceof SharedPacket) {
+            SharedPacket shared = (SharedPacket) packet;
+            if (shared.addReference()) {
+                return shared;
+            }
+            packet = shared.packet;
+        }
+        return new SharedPacket(packet);
+    }
+
+    /**
+     * Returns the packet that is being shared.
+     * @return packet
+     */
+    public Packet getPacket() {
+        return packet;
+    }
+
+    private synchronized boolean addReference() {
+        if (references == 0) {
+            return false;
+        }
+        ++references;
+        return true;
+    }
+
+    /**
+     * Returns a view of the encoded packet for a single client, encoding the
+     * packet if this is the first view.  The view holds a reference until it
+     * is passed to {@link SharedBuffer#release()}.
+     * @return view, or null if this packet has already been released.
+     */
+    public synchronized IoBuffer retain() {
+        if (references == 0) {
+            return null;
+        }
+        encode();
+        ++references;
+        return new SharedBuffer(this, readOnly.duplicate());
+    }
+
+    /**
+     * Encodes the packet into a pooled buffer if it has not been encoded yet.
+     * Must be called while synchronized and before the last release.
+     */
+    private void encode() {
+        if (buffer == null) {
+            buffer = DirectBufferPool.getInstance().allocate(size);
+            write(buffer);
+            buffer.flip();
+            readOnly = buffer.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Encodes the packet without using the shared buffer.
+     * @param out The buffer to write to.
+     */
+    private void write(IoBuffer out) {
+        if (bytes == null) {
+            ((EncodablePacket) packet).writeTo(out);
+        } else {
+            out.put(bytes);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Copies the shared encoding of this packet, encoding it first if no
+     * client has sent it yet.
+     */
+    @Override
+    public void writeTo(IoBuffer out) {
+        synchronized (this) {
+            if (references > 0) {
+                encode();
+                out.put(readOnly.duplicate());
+                return;
+            }
+        }
+        write(out);
+    }
+
+    /**
+     * Releases a reference.  The encoded packet is returned to the pool when
+     * the last reference is released.
+     */
+    public synchronized void release() {
+        if (references == 0) {
+            return;
+        }
+        if (--references == 0 && buffer != null) {
+            DirectBufferPool.getInstance().release(buffer);
+            buffer = null;
+            readOnly = null;
+        }
+    }
+
+    @Override
+    public byte[] getBytes() {
+        return bytes == null ? packet.getBytes() : bytes;
+    }
+
+    @Override
+    public Runnable getOnSend() {
+        return packet.getOnSend();
+    }
+
+    @Override
+    public void setOnSend(Runnable onSend) {
+        packet.setOnSend(onSend);
+    }
+}
@@ -3,6 +3,7 @@ package org.unallied.mmoserver.net.handlers;
 import org.unallied.mmocraft.tools.input.SeekableLittleEndianAccessor;
 import org.unallied.mmoserver.client.Client;
 import org.unallied.mmoserver.net.PacketCreator;
+import org.unallied.mmoserver.server.World;
 
 
 /**
@@ -16,7 +17,7 @@ import org.unallied.mmoserver.net.PacketCreator;
 public class ChunkHandler extends AbstractServerPacketHandler {
 
     @Override
-    public void handlePacket(SeekableLittleEndianAccessor slea, Client client) {
+    public void handlePacket(SeekableLittleEndianAccessor slea, final Client client) {
         if (slea.available() != 8) { // Guard
             return;
         }
@@ -24,16 +25,21 @@ public class ChunkHandler extends AbstractServerPacketHandler {
          *  Grab the chunk ID x and y coords.  We can do this because of how a
          *  chunkId is formatted
          */
-        long chunkId = slea.readLong();
+        final long chunkId = slea.readLong();
         
         // Make sure the client is able to request this chunk
         // FIXME This needs to be implemented to prevent an exploit!
         
-        // Send chunk info to the client
-        try {
-            client.announce(PacketCreator.getChunk(chunkId));
-        } catch (NullPointerException e) {
-            // Chunk must not exist
-        }
+        // Send chunk info to the client once the chunk is in memory
+        World.getInstance().whenChunkLoaded(chunkId, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.announce(PacketCreator.getChunk(chunkId));
+                } catch (NullPointerException e) {
+                    // Chunk must not exist
+                }
+            }
+        });
     }
 }
@@ -0,0 +1,64 @@
+package org.unallied.mmoserver.net.mina;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.future.DefaultWriteFuture;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.apache.mina.core.write.WriteRequestWrapper;
+
+/**
+ * Returns encoded packets to the {@link DirectBufferPool} once they have
+ * been written to the socket, or once the session has given up on them.
+ * Views of a shared packet release their reference instead.
+ * <br /><br />
+ * This must be placed before the codec in the filter chain.  MINA never
+ * fires messageSent for the buffers that the codec writes, so each buffer
+ * is released by a listener on its write request's future instead.
+ * @author Alexandria
+ *
+ */
+public class BufferReleaseFilter extends IoFilterAdapter {
+
+    @Override
+    public void filterWrite(NextFilter nextFilter, IoSession session,
+            WriteRequest writeRequest) throws Exception {
+        final Object message = writeRequest.getMessage();
+        if (writeRequest.isEncoded() && message instanceof IoBuffer) {
+            final WriteFuture original = writeRequest.getFuture();
+            final WriteFuture future = new DefaultWriteFuture(session);
+            future.addListener(new IoFutureListener<WriteFuture>() {
+                @Override
+                public void operationComplete(WriteFuture written) {
+                    release((IoBuffer) message);
+                    if (written.isWritten()) {
+                        original.setWritten();
+                    } else {
+                        original.setException(written.getException());
+                    }
+                }
+            });
+            writeRequest = new WriteRequestWrapper(writeRequest) {
+                @Override
+                public WriteFuture getFuture() {
+                    return future;
+                }
+            };
+        }
+        nextFilter.filterWrite(session, writeRequest);
+    }
+
+    /**
+     * Releases a buffer that is no longer needed by the session.
+     * @param buffer The buffer that was written.
+     */
+    private static void release(IoBuffer buffer) {
+        if (buffer instanceof SharedBuffer) {
+            ((SharedBuffer) buffer).release();
+        } else {
+            DirectBufferPool.getInstance().release(buffer);
+        }
+    }
+}
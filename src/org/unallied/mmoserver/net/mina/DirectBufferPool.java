@@ -0,0 +1,120 @@
+package org.unallied.mmoserver.net.mina;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.unallied.mmoserver.constants.ServerConstants;
+
+/**
+ * A pool of direct buffers for outgoing packets.  Buffers are grouped by
+ * size, in powers of two, and can be returned from any thread.  Packets are
+ * usually encoded on game threads and sent on network threads, so a single
+ * shared pool is used instead of one pool per thread.
+ * <br /><br />
+ * Buffers are returned to the pool by {@link BufferReleaseFilter} once they
+ * have been sent.
+ * @author Alexandria
+ *
+ */
+public class DirectBufferPool {
+
+    /** log2 of the smallest pooled buffer. */
+    private static final int MIN_SHIFT = 6;
+
+    /** log2 of the largest pooled buffer.  Larger buffers are not pooled. */
+    private static final int MAX_SHIFT = 16;
+
+    /**
+     * The free buffers of a single size.
+     * @author Alexandria
+     *
+     */
+    private static final class SizeClass {
+        private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        /** The number of buffers in {@link #free}. */
+        private final AtomicInteger count = new AtomicInteger();
+    }
+
+    private final SizeClass[] sizeClasses = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+    private DirectBufferPool() {
+        for (int i=0; i < sizeClasses.length; ++i) {
+            sizeClasses[i] = new SizeClass();
+        }
+    }
+
+    private static class DirectBufferPoolHolder {
+        private static final DirectBufferPool instance = new DirectBufferPool();
+    }
+
+    public static DirectBufferPool getInstance() {
+        return DirectBufferPoolHolder.instance;
+    }
+
+    /**
+     * Returns the size class of a buffer with <code>size</code> bytes.
+     * @param size The number of bytes needed.
+     * @return shift, such that the buffer holds 1 << shift bytes.
+     */
+    private static int getShift(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift < MIN_SHIFT ? MIN_SHIFT : shift;
+    }
+
+    /**
+     * Returns a little-endian buffer with room for exactly <code>size</code>
+     * bytes.
+     * @param size The number of bytes needed.
+     * @return buffer
+     */
+    public IoBuffer allocate(int size) {
+        int shift = getShift(size);
+        ByteBuffer buffer;
+        if (shift > MAX_SHIFT) {
+            buffer = ByteBuffer.allocate(size);
+        } else {
+            SizeClass sizeClass = sizeClasses[shift - MIN_SHIFT];
+            buffer = sizeClass.free.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(1 << shift);
+            } else {
+                sizeClass.count.decrementAndGet();
+            }
+            buffer.clear();
+            buffer.limit(size);
+        }
+        IoBuffer result = IoBuffer.wrap(buffer);
+        result.order(ByteOrder.LITTLE_ENDIAN);
+        return result;
+    }
+
+    /**
+     * Returns a buffer to the pool.  The buffer must not be written to
+     * afterwards.  Buffers that did not come from this pool are ignored.
+     * @param buffer The buffer.
+     */
+    public void release(IoBuffer buffer) {
+        ByteBuffer buf = buffer.buf();
+        int capacity = buf.capacity();
+        if (!buf.isDirect() || buf.isReadOnly() || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int shift = Integer.numberOfTrailingZeros(capacity);
+        if (shift < MIN_SHIFT || shift > MAX_SHIFT) {
+            return;
+        }
+        SizeClass sizeClass = sizeClasses[shift - MIN_SHIFT];
+        if (sizeClass.count.incrementAndGet() > ServerConstants.MAX_POOLED_BUFFERS) {
+            sizeClass.count.decrementAndGet();
+            return; // Let the garbage collector have it
+        }
+        // The processor still moves the old buffer's position after it is
+        // released, so the next owner gets a duplicate with its own position
+        sizeClass.free.offer(buf.duplicate());
+    }
+}
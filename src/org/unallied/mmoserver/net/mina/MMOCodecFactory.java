@@ -21,6 +21,7 @@ public class MMOCodecFactory implements ProtocolCodecFactory {
 
     @Override
     public ProtocolDecoder getDecoder(IoSession session) throws Exception {
+        // Called for every read, so the decoder must not keep any state
         return decoder;
     }
 
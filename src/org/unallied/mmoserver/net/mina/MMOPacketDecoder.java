@@ -1,60 +1,50 @@
 package org.unallied.mmoserver.net.mina;
 
+import java.nio.ByteOrder;
+
+import org.apache.mina.core.buffer.BufferDataException;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.unallied.mmoserver.constants.ServerConstants;
+import org.unallied.mmoserver.net.PacketAccessor;
 
+/**
+ * Splits the bytes received from a client into packets.  Packets are of
+ * the form [length][opcode][payload], where length is 4 bytes and opcode is
+ * 2 bytes.  Each packet is passed on as a {@link PacketAccessor} positioned
+ * at the start of the opcode.
+ * <br /><br />
+ * The decoder is shared by every session, and MINA asks for it on every
+ * read, so it keeps no state of its own.  A packet's length is only read
+ * once the whole packet has arrived; until then the bytes are kept by
+ * {@link CumulativeProtocolDecoder} in the session.
+ */
 public class MMOPacketDecoder extends CumulativeProtocolDecoder {
     
-    // This state lets us retrieve the partial packet later on
-    private static final String DECODER_STATE_KEY = 
-            MMOPacketDecoder.class.getName() + ".STATE";
-    
-    private static class DecoderState {
-        public int packetLength = -1;
-    }
-    
     @Override
     protected boolean doDecode(IoSession session, IoBuffer in, ProtocolDecoderOutput out)
             throws Exception {
         
-        // Get the current decoder state
-        DecoderState decoderState = (DecoderState) session.getAttribute(DECODER_STATE_KEY);
-        
-        // Decoder state is null, so make a new one
-        if (decoderState == null) {
-            decoderState = new DecoderState();
-            session.setAttribute(DECODER_STATE_KEY, decoderState);
+        // Wait for the length and the whole packet before consuming anything.
+        // A negative or oversized length throws, which closes the session.
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        if (!in.prefixedDataAvailable(4, ServerConstants.MAX_PACKET_SIZE)) {
+            return false;
         }
-        
-        /*
-         * If we have at least 4 bytes and our packet length is still invalid,
-         * update it.  Packets are of the following form: 
-         * [length][opcode][payload].  Length is 4 bytes, opcode is 2 bytes
-         */
-        if (in.remaining() >= 4 && decoderState.packetLength == -1) {
-            // We have to convert from big-ENDian to lil-ENDian.  That's why we don't use getInt()
-            decoderState.packetLength = 0;
-            decoderState.packetLength += (int) (in.get())       & 0x000000FF;
-            decoderState.packetLength += (int) (in.get() << 8)  & 0x0000FF00;
-            decoderState.packetLength += (int) (in.get() << 16) & 0x00FF0000;
-            decoderState.packetLength += (int) (in.get() << 24) & 0xFF000000;
-        } else if (in.remaining() < 4 && decoderState.packetLength == -1) {
-            return false; // Nothing to do.  We don't have the full header
+        int packetLength = in.getInt();
+        if (packetLength < 2) {
+            throw new BufferDataException("Packet has no opcode: " + packetLength);
         }
         
-        // If we have at least the bytes for this packet
-        if (in.remaining() >= decoderState.packetLength) {
-            byte decryptedPacket[] = new byte[decoderState.packetLength];
-            in.get(decryptedPacket, 0, decoderState.packetLength);
-            decoderState.packetLength = -1; // Prepare decoder for the next packet
-            
-            // we have a full packet, so process it!
-            out.write(decryptedPacket);
-            return true;
-        }
-        return false;
+        // Handlers run after the buffer has been reused, so the packet is copied
+        byte[] packet = new byte[packetLength];
+        in.get(packet, 0, packetLength);
+        
+        // we have a full packet, so process it!
+        out.write(new PacketAccessor(packet));
+        return true;
     }
 
 }
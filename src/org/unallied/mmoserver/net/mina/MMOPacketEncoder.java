@@ -5,6 +5,8 @@ import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolEncoder;
 import org.apache.mina.filter.codec.ProtocolEncoderOutput;
 import org.unallied.mmocraft.net.Packet;
+import org.unallied.mmoserver.net.EncodablePacket;
+import org.unallied.mmoserver.net.SharedPacket;
 
 public class MMOPacketEncoder implements ProtocolEncoder {
 
@@ -12,7 +14,26 @@ public class MMOPacketEncoder implements ProtocolEncoder {
     public void encode(IoSession session, Object message,
             ProtocolEncoderOutput out) throws Exception {
         // No encryption
-        out.write(IoBuffer.wrap(((Packet) message).getBytes()));
+        if (message instanceof SharedPacket) {
+            IoBuffer view = ((SharedPacket) message).retain();
+            if (view != null) {
+                out.write(view);
+                return;
+            }
+            // Already released by the broadcaster, so encode it on its own
+            message = ((SharedPacket) message).getPacket();
+        }
+        if (message instanceof EncodablePacket) {
+            // Written straight into a pooled buffer, which is returned to the
+            // pool by the BufferReleaseFilter once it has been sent
+            EncodablePacket packet = (EncodablePacket) message;
+            IoBuffer buffer = DirectBufferPool.getInstance().allocate(packet.getSize());
+            packet.writeTo(buffer);
+            buffer.flip();
+            out.write(buffer);
+        } else {
+            out.write(IoBuffer.wrap(((Packet) message).getBytes()));
+        }
     }
 
     @Override
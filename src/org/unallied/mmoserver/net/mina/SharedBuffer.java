@@ -0,0 +1,34 @@
+package org.unallied.mmoserver.net.mina;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferWrapper;
+import org.unallied.mmoserver.net.SharedPacket;
+
+/**
+ * A single client's view of a {@link SharedPacket}.  The view has its own
+ * position, but the bytes belong to the shared packet.
+ * @author Alexandria
+ *
+ */
+public class SharedBuffer extends IoBufferWrapper {
+
+    private final SharedPacket owner;
+
+    /**
+     * Creates a view of a shared packet.
+     * @param owner The packet whose bytes are being viewed.
+     * @param view A read-only duplicate of the packet's buffer.
+     */
+    public SharedBuffer(SharedPacket owner, IoBuffer view) {
+        super(view);
+        this.owner = owner;
+    }
+
+    /**
+     * Releases this view's reference to the shared packet.  This must only
+     * be called once, after the view has been sent.
+     */
+    public void release() {
+        owner.release();
+    }
+}
@@ -0,0 +1,239 @@
+package org.unallied.mmoserver.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.unallied.mmocraft.Location;
+import org.unallied.mmocraft.constants.WorldConstants;
+import org.unallied.mmocraft.net.Packet;
+import org.unallied.mmoserver.client.Client;
+import org.unallied.mmoserver.monsters.ServerMonster;
+import org.unallied.mmoserver.net.PacketCreator;
+
+/**
+ * Keeps track of which players can see each chunk of the world.  A player
+ * subscribes to every chunk within <code>WorldConstants.WORLD_DRAW_DISTANCE</code>
+ * chunks of their own chunk, so a broadcast only needs to visit the
+ * subscribers of a single chunk instead of searching the chunks around it.
+ * <br /><br />
+ * When a player moves to a new chunk, only the strips of chunks entering and
+ * leaving their view are updated.  The player is told about the players and
+ * monsters in the chunks entering their view, and told to forget about the
+ * ones in the chunks leaving it.
+ * @author Alexandria
+ *
+ */
+public class AreaOfInterest {
+
+    /** The players who can see each chunk. */
+    private final SpatialIndex<ServerPlayer> subscribers = new SpatialIndex<ServerPlayer>();
+
+    /** All players by chunk. */
+    private final SpatialIndex<ServerPlayer> players;
+
+    /** All monsters by chunk. */
+    private final SpatialIndex<ServerMonster> monsters;
+
+    /**
+     * Creates an area of interest manager for the players and monsters given.
+     * @param players All players by chunk.
+     * @param monsters All monsters by chunk.
+     */
+    public AreaOfInterest(SpatialIndex<ServerPlayer> players, SpatialIndex<ServerMonster> monsters) {
+        this.players = players;
+        this.monsters = monsters;
+    }
+
+    private static int getChunkX(Location location) {
+        return location.getX() / WorldConstants.WORLD_CHUNK_WIDTH;
+    }
+
+    private static int getChunkY(Location location) {
+        return location.getY() / WorldConstants.WORLD_CHUNK_HEIGHT;
+    }
+
+    private static long getChunkId(int x, int y) {
+        int maxX = WorldConstants.WORLD_CHUNKS_WIDE;
+        x %= maxX;
+        x = x < 0 ? maxX + x : x;
+        return ((long) y << 32) | x;
+    }
+
+    /**
+     * Subscribes a player to every chunk that they can see from this location.
+     * This should be called once when the player enters the world.
+     * @param viewer The player.
+     * @param location The player's location.
+     */
+    public void subscribe(ServerPlayer viewer, Location location) {
+        int x = getChunkX(location);
+        int y = getChunkY(location);
+        int radius = WorldConstants.WORLD_DRAW_DISTANCE;
+        for (int i = -radius; i <= radius; ++i) {
+            for (int j = -radius; j <= radius; ++j) {
+                subscribers.add(getChunkId(x + i, y + j), viewer.getId(), viewer);
+            }
+        }
+    }
+
+    /**
+     * Unsubscribes a player from every chunk that they can see from this
+     * location.  This should be called once when the player leaves the world.
+     * @param viewer The player.
+     * @param location The player's location.
+     */
+    public void unsubscribe(ServerPlayer viewer, Location location) {
+        int x = getChunkX(location);
+        int y = getChunkY(location);
+        int radius = WorldConstants.WORLD_DRAW_DISTANCE;
+        for (int i = -radius; i <= radius; ++i) {
+            for (int j = -radius; j <= radius; ++j) {
+                subscribers.remove(getChunkId(x + i, y + j), viewer.getId());
+            }
+        }
+    }
+
+    /**
+     * Updates a player's subscriptions after they have moved.  Only the chunks
+     * which have entered or left the player's view are changed.
+     * @param viewer The player.
+     * @param from The player's old location.
+     * @param to The player's new location.
+     */
+    public void move(ServerPlayer viewer, Location from, Location to) {
+        int fromX = getChunkX(from);
+        int fromY = getChunkY(from);
+        int toX = getChunkX(to);
+        int toY = getChunkY(to);
+        if (fromX == toX && fromY == toY) {
+            return;
+        }
+        updateDifference(viewer, fromX, fromY, toX, toY, false);
+        updateDifference(viewer, toX, toY, fromX, fromY, true);
+    }
+
+    /**
+     * Updates the player's subscriptions for every chunk that can be seen from
+     * chunk (ax, ay) but not from chunk (bx, by).  Only those chunks are
+     * visited, so the cost is proportional to the distance moved and not to
+     * the size of the view.
+     * @param viewer The player.
+     * @param ax The x coordinate of the chunk whose view is being visited.
+     * @param ay The y coordinate of the chunk whose view is being visited.
+     * @param bx The x coordinate of the chunk whose view is excluded.
+     * @param by The y coordinate of the chunk whose view is excluded.
+     * @param entering True if the chunks are entering the player's view;
+     *                 false if they are leaving it.
+     */
+    private void updateDifference(ServerPlayer viewer, int ax, int ay, int bx, int by, boolean entering) {
+        int radius = WorldConstants.WORLD_DRAW_DISTANCE;
+        int maxX = WorldConstants.WORLD_CHUNKS_WIDE;
+
+        // The shortest horizontal distance, since the world wraps around
+        int dx = (bx - ax) % maxX;
+        dx = dx > maxX / 2 ? dx - maxX : dx < -maxX / 2 ? dx + maxX : dx;
+        int dy = by - ay;
+
+        for (int i = -radius; i <= radius; ++i) {
+            if (Math.abs(i - dx) > radius) {
+                // This whole column is outside of the other view
+                for (int j = -radius; j <= radius; ++j) {
+                    update(viewer, getChunkId(ax + i, ay + j), entering);
+                }
+            } else {
+                // Only the rows above and below the other view
+                for (int j = -radius; j <= Math.min(radius, dy - radius - 1); ++j) {
+                    update(viewer, getChunkId(ax + i, ay + j), entering);
+                }
+                for (int j = Math.max(-radius, dy + radius + 1); j <= radius; ++j) {
+                    update(viewer, getChunkId(ax + i, ay + j), entering);
+                }
+            }
+        }
+    }
+
+    /**
+     * Subscribes or unsubscribes a player from a chunk, and tells them about
+     * the players and monsters in it.
+     * @param viewer The player.
+     * @param chunkId The chunk entering or leaving the player's view.
+     * @param entering True if the chunk is entering the player's view.
+     */
+    private void update(ServerPlayer viewer, long chunkId, boolean entering) {
+        if (entering) {
+            subscribers.add(chunkId, viewer.getId(), viewer);
+        } else {
+            subscribers.remove(chunkId, viewer.getId());
+        }
+        Client client = viewer.getClient();
+        if (client == null) {
+            return;
+        }
+        // Read straight from the cells, since this runs for every chunk a player passes
+        int x = (int) ((chunkId << 32) >> 32);
+        int y = (int) (chunkId >> 32);
+        Object[] entities = players.getEntities(x, y);
+        for (int i=0; i < entities.length; ++i) {
+            ServerPlayer player = (ServerPlayer) entities[i];
+            if (player.getId() != viewer.getId()) {
+                client.announce(entering ? PacketCreator.getPlayerMovement(player)
+                        : PacketCreator.getPlayerDisconnect(player));
+            }
+        }
+        entities = monsters.getEntities(x, y);
+        for (int i=0; i < entities.length; ++i) {
+            ServerMonster monster = (ServerMonster) entities[i];
+            // A monster with 0 HP is removed by the client
+            client.announce(entering ? PacketCreator.getMonsterMovement(monster)
+                    : PacketCreator.getMonsterDamaged(null, monster, 0, 0));
+        }
+    }
+
+    /**
+     * Visits every player who can see the chunk containing this location.
+     * @param location The location.
+     * @param visitor Called for every player who can see <code>location</code>.
+     */
+    public void forEachSubscriber(Location location, EntityVisitor<? super ServerPlayer> visitor) {
+        subscribers.forEachNear(getChunkX(location), getChunkY(location), 0, visitor);
+    }
+
+    /**
+     * Sends a packet to every player who can see the chunk containing this
+     * location.  Nothing is allocated unless a player has to be logged out,
+     * so this is used for broadcasts.  Players who no longer have a client
+     * are logged out once every other player has been sent the packet.
+     * @param location The location.
+     * @param packet The packet to send.
+     * @param except A player who should not be sent the packet, or null.
+     */
+    public void announce(Location location, Packet packet, ServerPlayer except) {
+        Object[] viewers = subscribers.getEntities(getChunkX(location), getChunkY(location));
+        List<ServerPlayer> stale = null;
+        for (int i=0; i < viewers.length; ++i) {
+            ServerPlayer p = (ServerPlayer) viewers[i];
+            if (except != null && p.getId() == except.getId()) {
+                continue;
+            }
+            try {
+                p.getClient().announce(packet);
+            } catch (NullPointerException e) {
+                // Logging out unsubscribes the player, so it waits for the broadcast to finish
+                if (stale == null) {
+                    stale = new ArrayList<ServerPlayer>();
+                }
+                stale.add(p);
+            }
+        }
+        if (stale != null) {
+            for (int i=0; i < stale.size(); ++i) {
+                ServerPlayer p = stale.get(i);
+                if (p.getClient() != null) {
+                    Server.getInstance().logout(p.getClient());
+                } else {
+                    Server.getInstance().getServerPlayerPool().removePlayer(p.getId());
+                }
+            }
+        }
+    }
+}
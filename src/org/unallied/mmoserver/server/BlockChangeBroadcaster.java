@@ -0,0 +1,111 @@
+package org.unallied.mmoserver.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.unallied.mmocraft.BoundLocation;
+import org.unallied.mmocraft.constants.WorldConstants;
+import org.unallied.mmocraft.net.Packet;
+import org.unallied.mmoserver.constants.ServerConstants;
+import org.unallied.mmoserver.net.PacketCreator;
+
+/**
+ * Collects the blocks that change during a tick and tells nearby players
+ * about them once at the end of the tick.  All of a chunk's changes are sent
+ * to each of the chunk's subscribers as a single packet, instead of one
+ * broadcast for every block.  If too many of a chunk's blocks changed, the
+ * whole chunk is sent instead.
+ * @author Alexandria
+ *
+ */
+public class BlockChangeBroadcaster {
+
+    /**
+     * The changes made to a single chunk during a tick.
+     * @author Alexandria
+     *
+     */
+    private static class ChunkChanges {
+        private final int[] xs = new int[ServerConstants.MAX_BATCHED_BLOCK_CHANGES];
+        private final int[] ys = new int[ServerConstants.MAX_BATCHED_BLOCK_CHANGES];
+        private final byte[] values = new byte[ServerConstants.MAX_BATCHED_BLOCK_CHANGES];
+        private int count = 0;
+
+        /** True if there were too many changes, so the whole chunk must be sent. */
+        private boolean overflow = false;
+
+        private void add(int x, int y, byte value) {
+            if (overflow) {
+                return;
+            }
+            // A block that changed twice only needs its newest value
+            for (int i=0; i < count; ++i) {
+                if (xs[i] == x && ys[i] == y) {
+                    values[i] = value;
+                    return;
+                }
+            }
+            if (count == values.length) {
+                overflow = true;
+                return;
+            }
+            xs[count] = x;
+            ys[count] = y;
+            values[count] = value;
+            ++count;
+        }
+    }
+
+    /** The changes made this tick, by chunk id. */
+    private Map<Long, ChunkChanges> pending = new HashMap<Long, ChunkChanges>();
+
+    /**
+     * Records that a block has changed.  Players are told about it the next
+     * time that {@link #flush()} is called.
+     * @param x The x block coordinate of the world
+     * @param y The y block coordinate of the world
+     * @param value The value of the block's new type.
+     */
+    public void add(int x, int y, byte value) {
+        long chunkId = ((long) (y / WorldConstants.WORLD_CHUNK_HEIGHT) << 32)
+                | (x / WorldConstants.WORLD_CHUNK_WIDTH);
+        synchronized (this) {
+            ChunkChanges changes = pending.get(chunkId);
+            if (changes == null) {
+                changes = new ChunkChanges();
+                pending.put(chunkId, changes);
+            }
+            changes.add(x, y, value);
+        }
+    }
+
+    /**
+     * Sends every change recorded since the last flush to the players who can
+     * see the changed chunks.  This should be called once per tick.
+     */
+    public void flush() {
+        Map<Long, ChunkChanges> changed;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            changed = pending;
+            pending = new HashMap<Long, ChunkChanges>();
+        }
+        for (Map.Entry<Long, ChunkChanges> entry : changed.entrySet()) {
+            long chunkId = entry.getKey();
+            ChunkChanges changes = entry.getValue();
+            Packet packet;
+            if (changes.overflow) {
+                packet = PacketCreator.getChunk(chunkId);
+            } else {
+                packet = PacketCreator.getBlocksChanged(changes.xs, changes.ys,
+                        changes.values, changes.count);
+            }
+            int x = (int) ((chunkId << 32) >> 32);
+            int y = (int) (chunkId >> 32);
+            Server.getInstance().localBroadcast(new BoundLocation(x * WorldConstants.WORLD_CHUNK_WIDTH,
+                    y * WorldConstants.WORLD_CHUNK_HEIGHT), packet);
+        }
+    }
+}
@@ -1,23 +1,37 @@
 package org.unallied.mmoserver.server;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.SortedSet;
-
-import org.unallied.mmocraft.RawPoint;
 import org.unallied.mmocraft.blocks.Block;
 import org.unallied.mmocraft.skills.SkillType;
-import org.unallied.mmocraft.tools.CollectionTools;
 
 /**
  * Keeps track of all block damage in the game.
+ * <br /><br />
+ * Blocks restore their HP over time.  Rather than restoring the HP of every
+ * damaged block on every update, each block remembers how much HP it had when
+ * it was last damaged, and its current HP is calculated from the time that has
+ * passed since then.  Blocks which have restored all of their HP are removed
+ * by a timer wheel, so each update only visits the blocks which are due.
+ * <br /><br />
+ * Damaged blocks are split into shards by location, each with its own lock,
+ * so that players mining in different places do not wait on each other.
  * @author Alexandria
  *
  */
 public class BlockDamage {
-    
+
+    /** The number of milliseconds covered by each slot of the timer wheel. */
+    private static final long WHEEL_SLOT_DURATION = 100;
+
+    /**
+     * The number of slots in the timer wheel.  Must be a power of 2.  The
+     * wheel covers more time than it takes to restore a block, so blocks are
+     * normally only visited once.
+     */
+    private static final int WHEEL_SIZE = 256;
+
+    /** The number of shards.  Must be a power of 2. */
+    private static final int SHARD_COUNT = 32;
+
     /**
      * A single node for block damage.  One node is used for each block.  The
      * node contains the amount of HP remaining in the block as well as the
@@ -25,172 +39,418 @@ public class BlockDamage {
      * @author Alexandria
      *
      */
-    protected class BlockDamageNode {
-        /** 
+    private static final class BlockDamageNode {
+        /**
          * The amount of time in milliseconds that it takes for a block to
          * restore all of its HP.
          */
         public static final int HP_RESTORE_RATE = 20000;
-        
-        protected Block block;
-        
-        /** The amount of HP remaining in the block. */
-        protected long hpRemaining;
-        
-        /** 
-         * The amount of time that has elapsed which was unaccounted for.
-         * This builds up slowly over time until the smallest unit of HP
-         * can be restored, at which point it is reduced by the appropriate
-         * amount.
+
+        private final Block block;
+
+        /** The location of the block:  (y << 32) | x */
+        private final long key;
+
+        /** The amount of HP remaining in the block when it was last damaged. */
+        private long hpRemaining;
+
+        /** The time in milliseconds when the block was last damaged. */
+        private long lastDamageTime;
+
+        /**
+         * The ids of the players who have damaged the block.  Usually only one
+         * to three players damage a block, so these are searched linearly.
          */
-        protected long elapsedTime = 0;
-        
-        /** A map containing all of the player IDs to the amount of damage they've dealt. */
-        protected Map<Integer, Long> playerDamageMap = 
-                Collections.synchronizedMap(new HashMap<Integer, Long>());
-        
+        private int[] playerIds = new int[2];
+
+        /** The damage dealt by each player in playerIds. */
+        private long[] playerDamage = new long[2];
+
+        /** The number of players who have damaged the block. */
+        private int playerCount = 0;
+
+        /** The timer wheel tick that this node is scheduled to be removed in, or -1. */
+        private long scheduledTick = -1;
+
+        /** The previous and next nodes in the same timer wheel slot. */
+        private BlockDamageNode previous = null;
+        private BlockDamageNode next = null;
+
         /**
-         * Creates a block damage node and deals player damage to the block.
-         * @param block The block receiving the damage.
-         * @param playerId The id of the player doing the damage.
-         * @param damage The amount of damage dealt.
+         * Creates a block damage node at full HP.
+         * @param block The block being damaged.
+         * @param key The location of the block:  (y << 32) | x
+         * @param time The current time in milliseconds.
          */
-        BlockDamageNode(Block block, int playerId, long damage) {
+        BlockDamageNode(Block block, long key, long time) {
             this.block = block;
-            hpRemaining = this.block.getMaximumHealth() - damage;
-            playerDamageMap.put(playerId, damage);
+            this.key = key;
+            hpRemaining = this.block.getMaximumHealth();
+            lastDamageTime = time;
         }
-        
+
         /**
          * Deals damage to the block.
          * @param playerId The player ID dealing the damage.
          * @param damage The amount of damage dealt.
+         * @param time The current time in milliseconds.
          */
-        public void doDamage(int playerId, long damage) {
-            Long currentDamage = playerDamageMap.get(playerId);
-            Long newDamage = currentDamage == null ? damage : currentDamage + damage;
-            
-            playerDamageMap.put(playerId, newDamage);
-            hpRemaining -= damage;
-        }
-        
+        void doDamage(int playerId, long damage, long time) {
+            int index = 0;
+            while (index < playerCount && playerIds[index] != playerId) {
+                ++index;
+            }
+            if (index == playerCount) {
+                if (playerCount == playerIds.length) {
+                    int[] newIds = new int[playerCount * 2];
+                    long[] newDamage = new long[playerCount * 2];
+                    System.arraycopy(playerIds, 0, newIds, 0, playerCount);
+                    System.arraycopy(playerDamage, 0, newDamage, 0, playerCount);
+                    playerIds = newIds;
+                    playerDamage = newDamage;
+                }
+                playerIds[index] = playerId;
+                playerDamage[index] = 0;
+                ++playerCount;
+            }
+            playerDamage[index] += damage;
+            hpRemaining = getHp(time) - damage;
+            lastDamageTime = time;
+        }
+
         /**
-         * Updates the HP of the block, healing it if necessary.
-         * @param delta The amount of time in milliseconds that has passed.
+         * Returns the HP of the block, including the HP it has restored since
+         * it was last damaged.
+         * @param time The current time in milliseconds.
+         * @return hp
          */
-        public void update(long delta) {
-            elapsedTime += delta;
+        long getHp(long time) {
             // TODO:  Add support for blocks to have different restore rates.
-            int hpToRestore = (int) (elapsedTime * block.getMaximumHealth() / HP_RESTORE_RATE);
-            elapsedTime -= hpToRestore * HP_RESTORE_RATE / block.getMaximumHealth();
-            hpRemaining += hpToRestore;
+            long hp = hpRemaining + (time - lastDamageTime) * block.getMaximumHealth() / HP_RESTORE_RATE;
             // Cap the HP if it's too high
-            hpRemaining = hpRemaining > block.getMaximumHealth() ? block.getMaximumHealth() : hpRemaining;
+            return hp > block.getMaximumHealth() ? block.getMaximumHealth() : hp;
         }
-        
+
         /**
-         * Retrieves the block damage map containing a mapping of all player 
-         * IDs to the damage they've dealt.
-         * @return playerDamageMap
+         * Returns the time in milliseconds when the block will have restored
+         * all of its HP.
+         * @return restoreTime
          */
-        public Map<Integer, Long> getPlayerDamageMap() {
-            return playerDamageMap;
+        long getRestoreTime() {
+            long missingHp = block.getMaximumHealth() - hpRemaining;
+            long maximumHealth = block.getMaximumHealth();
+            return lastDamageTime + (missingHp * HP_RESTORE_RATE + maximumHealth - 1) / maximumHealth;
         }
     }
-    
+
     /**
-     * Keeps track of damaged blocks.  The block damage map maps block locations 
-     * to its block.
+     * The damaged blocks in one part of the world.  All access must hold the
+     * lock on the shard.
+     * @author Alexandria
+     *
      */
-    private Map<RawPoint, BlockDamageNode> blockDamageMap = 
-            Collections.synchronizedMap(new HashMap<RawPoint, BlockDamageNode>());
-    
+    private static final class Shard {
+        /** Block locations, stored with open addressing and linear probing. */
+        private long[] keys = new long[16];
+
+        /** The node for each key, or null if the slot is empty. */
+        private BlockDamageNode[] nodes = new BlockDamageNode[16];
+
+        /** The number of nodes in the shard. */
+        private int size = 0;
+
+        /** The first node in each slot of the timer wheel. */
+        private final BlockDamageNode[] wheel = new BlockDamageNode[WHEEL_SIZE];
+
+        private static int hash(long key) {
+            key *= 0x9E3779B97F4A7C15L;
+            return (int) (key ^ (key >>> 32));
+        }
+
+        /**
+         * Returns the slot that contains <code>key</code>, or the empty slot
+         * where it would be added.
+         */
+        private int find(long key) {
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (nodes[slot] != null && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        BlockDamageNode get(long key) {
+            return nodes[find(key)];
+        }
+
+        void put(BlockDamageNode node) {
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            int slot = find(node.key);
+            if (nodes[slot] == null) {
+                ++size;
+            }
+            keys[slot] = node.key;
+            nodes[slot] = node;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            BlockDamageNode[] oldNodes = nodes;
+            keys = new long[capacity];
+            nodes = new BlockDamageNode[capacity];
+            for (int i=0; i < oldKeys.length; ++i) {
+                if (oldNodes[i] != null) {
+                    int slot = find(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    nodes[slot] = oldNodes[i];
+                }
+            }
+        }
+
+        /**
+         * Removes the node at <code>key</code> and unschedules it.
+         * @return the removed node, or null if there was none.
+         */
+        BlockDamageNode remove(long key) {
+            int mask = keys.length - 1;
+            int slot = find(key);
+            BlockDamageNode result = nodes[slot];
+            if (result == null) {
+                return null;
+            }
+            unschedule(result);
+            nodes[slot] = null;
+            --size;
+            // Shift back any following nodes that no longer have a path to their slot
+            int next = (slot + 1) & mask;
+            while (nodes[next] != null) {
+                int ideal = hash(keys[next]) & mask;
+                if (((next - ideal) & mask) >= ((next - slot) & mask)) {
+                    keys[slot] = keys[next];
+                    nodes[slot] = nodes[next];
+                    nodes[next] = null;
+                    slot = next;
+                }
+                next = (next + 1) & mask;
+            }
+            return result;
+        }
+
+        /**
+         * Schedules a node to be checked for removal once it has restored all
+         * of its HP.
+         * @param node The node to schedule.
+         * @param processedTick The last timer wheel tick that has been processed.
+         */
+        void schedule(BlockDamageNode node, long processedTick) {
+            long tick = (node.getRestoreTime() + WHEEL_SLOT_DURATION - 1) / WHEEL_SLOT_DURATION;
+            // The node can't be due before the next tick or after one revolution of the wheel
+            tick = tick <= processedTick ? processedTick + 1 : tick;
+            tick = tick >= processedTick + WHEEL_SIZE ? processedTick + WHEEL_SIZE - 1 : tick;
+            if (tick == node.scheduledTick) {
+                return;
+            }
+            unschedule(node);
+            int index = (int) (tick & (WHEEL_SIZE - 1));
+            node.scheduledTick = tick;
+            node.next = wheel[index];
+            if (wheel[index] != null) {
+                wheel[index].previous = node;
+            }
+            wheel[index] = node;
+        }
+
+        void unschedule(BlockDamageNode node) {
+            if (node.scheduledTick == -1) {
+                return;
+            }
+            if (node.previous != null) {
+                node.previous.next = node.next;
+            } else {
+                wheel[(int) (node.scheduledTick & (WHEEL_SIZE - 1))] = node.next;
+            }
+            if (node.next != null) {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+            node.scheduledTick = -1;
+        }
+
+        /**
+         * Removes the nodes in a timer wheel slot which have restored all of
+         * their HP, and reschedules the rest.
+         * @param tick The tick being processed.
+         * @param processedTick The last tick that will have been processed once
+         *                      this update finishes.
+         * @param time The current time in milliseconds.
+         */
+        void expire(long tick, long processedTick, long time) {
+            int index = (int) (tick & (WHEEL_SIZE - 1));
+            BlockDamageNode node = wheel[index];
+            // Detach the slot first, since nodes may be rescheduled into it
+            wheel[index] = null;
+            while (node != null) {
+                BlockDamageNode next = node.next;
+                node.previous = null;
+                node.next = null;
+                node.scheduledTick = -1;
+                if (node.getRestoreTime() <= time) {
+                    remove(node.key);
+                } else {
+                    schedule(node, processedTick);
+                }
+                node = next;
+            }
+        }
+    }
+
+    private final Shard[] shards = new Shard[SHARD_COUNT];
+
+    /** The last timer wheel tick that has been processed. */
+    private volatile long processedTick = 0;
+
+    /** The time in milliseconds that has passed since the block damage was created. */
+    private volatile long time = 0;
+
     /**
      * Creates a BlockDamage class, which contains all of the block damage for
      * all of the players in the entire world.
      */
     public BlockDamage() {
+        for (int i=0; i < SHARD_COUNT; ++i) {
+            shards[i] = new Shard();
+        }
     }
-    
+
     /**
-     * Clears all damage from the block at <code>point</code>.
-     * 
-     * @param point The x,y coordinate of the block.  Each block is 1 unit.
-     *              Top-left corner is (0, 0).
+     * Returns the key of a block:  (y << 32) | x
      */
-    public void clearDamage(RawPoint point) {
-        if (point == null) { // Guard
-            return;
+    private static long getKey(int x, int y) {
+        return ((long) y << 32) | (x & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the shard containing a block.
+     */
+    private Shard getShard(long key) {
+        // Use the high bits of the hash so that they differ from the shard's slot bits
+        key *= 0x9E3779B97F4A7C15L;
+        return shards[(int) (key >>> 59) & (SHARD_COUNT - 1)];
+    }
+
+    /**
+     * Clears all damage from the block at (x, y).
+     *
+     * @param x The x coordinate of the block.  Each block is 1 unit.
+     * @param y The y coordinate of the block.  Top-left corner is (0, 0).
+     */
+    public void clearDamage(int x, int y) {
+        long key = getKey(x, y);
+        Shard shard = getShard(key);
+        synchronized (shard) {
+            shard.remove(key);
         }
-        blockDamageMap.remove(point);
     }
-    
+
     /**
-     * Deals damage to a block at <code>point</code>.
-     * @param point The x,y coordinate of the block.  Each block is 1 unit.
-     *              Top-left corner is (0, 0).
+     * Deals damage to a block at (x, y).
+     * @param x The x coordinate of the block.  Each block is 1 unit.
+     * @param y The y coordinate of the block.  Top-left corner is (0, 0).
      * @param playerId The id of the player doing the damage.
      * @param damage The amount of damage dealt.
      * @param block A copy of the block receiving the damage.
      * @return True if the block has been broken, else false.
      */
-    public boolean doDamage(RawPoint point, int playerId, long damage, Block block) {
-        boolean result = false;
-        if (blockDamageMap.containsKey(point)) {
-            synchronized (blockDamageMap) {
-                blockDamageMap.get(point).doDamage(playerId, damage);
-            }
-        } else { // No key, so go ahead and add it
-            blockDamageMap.put(point, new BlockDamageNode(block, playerId, damage));
-        }
-        synchronized (blockDamageMap) {
-            BlockDamageNode node = blockDamageMap.get(point);
-            // Block was destroyed.
-            if (node != null && node.hpRemaining <= 0) {
-                // Sort the players by the amount of damage they dealt to the blocks.
-                SortedSet<Map.Entry<Integer, Long>> playerDamageMap = 
-                        CollectionTools.entriesSortedByValues(node.getPlayerDamageMap());
-                // Go through the players and select the person with the highest damage who's online.
-                for (Map.Entry<Integer, Long> entry : playerDamageMap) {
-                    ServerPlayer player = Server.getInstance().getPlayer(entry.getKey());
-                    if (player != null) { // Player is online and is the highest damager.
-                        try {
-                            long playerDamage = entry.getValue();
-                            playerDamage = playerDamage > node.block.getMaximumHealth() ? 
-                                    node.block.getMaximumHealth() : playerDamage;
-                            playerDamage = playerDamage < 0 ? 0 : playerDamage;
-                            player.addExperience(SkillType.MINING, playerDamage / 9);
-                            player.addItem(node.block.getItem().getId(), 1);
-                            break;
-                        } catch (Throwable t) {
-                            // An error occurred selecting this winner.  Did they log out?
-                            t.printStackTrace();
-                        }
-                    }
+    public boolean doDamage(int x, int y, int playerId, long damage, Block block) {
+        long key = getKey(x, y);
+        Shard shard = getShard(key);
+        long time = this.time;
+        BlockDamageNode broken = null;
+        synchronized (shard) {
+            BlockDamageNode node = shard.get(key);
+            if (node == null) { // No key, so go ahead and add it
+                node = new BlockDamageNode(block, key, time);
+                shard.put(node);
+            }
+            node.doDamage(playerId, damage, time);
+            if (node.hpRemaining <= 0) {
+                shard.remove(key);
+                broken = node;
+            } else {
+                shard.schedule(node, processedTick);
+            }
+        }
+
+        // Block was destroyed.
+        if (broken != null) {
+            reward(broken);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gives the block to the online player who dealt the most damage to it.
+     * @param node The broken block.
+     */
+    private void reward(BlockDamageNode node) {
+        // Sort the players by the amount of damage they dealt to the block, highest first.
+        int count = node.playerCount;
+        int[] ids = node.playerIds;
+        long[] damage = node.playerDamage;
+        for (int i=1; i < count; ++i) {
+            for (int j=i; j > 0 && damage[j] > damage[j-1]; --j) {
+                int tmpId = ids[j];
+                ids[j] = ids[j-1];
+                ids[j-1] = tmpId;
+                long tmpDamage = damage[j];
+                damage[j] = damage[j-1];
+                damage[j-1] = tmpDamage;
+            }
+        }
+        // Go through the players and select the person with the highest damage who's online.
+        for (int i=0; i < count; ++i) {
+            ServerPlayer player = Server.getInstance().getPlayer(ids[i]);
+            if (player != null) { // Player is online and is the highest damager.
+                try {
+                    long playerDamage = damage[i];
+                    playerDamage = playerDamage > node.block.getMaximumHealth() ?
+                            node.block.getMaximumHealth() : playerDamage;
+                    playerDamage = playerDamage < 0 ? 0 : playerDamage;
+                    player.addExperience(SkillType.MINING, playerDamage / 9);
+                    player.addItem(node.block.getItem().getId(), 1);
+                    break;
+                } catch (Throwable t) {
+                    // An error occurred selecting this winner.  Did they log out?
+                    t.printStackTrace();
                 }
-                blockDamageMap.remove(point);
-                result = true;
             }
         }
-        
-        return result;
     }
-    
+
     /**
-     * Updates all of the blocks, restoring their HP and removing them if 
-     * needed.
+     * Advances time, removing the blocks which have restored all of their HP.
+     * Only the blocks which are due are visited.
      * @param delta The amount of time that has passed in milliseconds.
      */
     public void update(long delta) {
-        synchronized (blockDamageMap) {
-            // Iterate over the block damage map, removing nodes if they're at full HP.
-            Iterator<Map.Entry<RawPoint, BlockDamageNode>> iter = blockDamageMap.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<RawPoint, BlockDamageNode> entry = iter.next();
-                BlockDamageNode node = entry.getValue();
-                node.update(delta);
-                if (node.hpRemaining >= node.block.getMaximumHealth()) {
-                    iter.remove();
+        long time = this.time + delta;
+        this.time = time;
+        long tick = time / WHEEL_SLOT_DURATION;
+        if (tick == processedTick) {
+            return;
+        }
+        // Each slot only needs to be visited once, even if a lot of time has passed
+        long firstTick = Math.max(processedTick + 1, tick - WHEEL_SIZE + 1);
+        processedTick = tick;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (long t = firstTick; t <= tick; ++t) {
+                    shard.expire(t, tick, time);
                 }
             }
         }
@@ -0,0 +1,75 @@
+package org.unallied.mmoserver.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.unallied.mmocraft.BoundLocation;
+import org.unallied.mmocraft.constants.WorldConstants;
+import org.unallied.mmoserver.constants.ServerConstants;
+
+/**
+ * Generates chunks around online players in the background so that they are
+ * ready before the players need them.  Chunks are prepared in rings around
+ * each player, starting with the closest ring.
+ * @author Alexandria
+ *
+ */
+public class ChunkPregenerator implements Runnable {
+
+    @Override
+    public void run() {
+        while (Server.getInstance().isOnline()) {
+            try {
+                pregenerate();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+            try {
+                Thread.sleep(ServerConstants.CHUNK_PREGENERATION_FREQUENCY);
+            } catch (InterruptedException e) {
+            }
+        }
+        System.out.println("Server is not online.  Chunk Pregenerator has stopped.");
+    }
+
+    /**
+     * Prepares all chunks within {@link ServerConstants#CHUNK_PREGENERATION_RADIUS}
+     * of every online player.
+     */
+    private void pregenerate() {
+        // Copy the locations so that the player pool isn't locked while generating
+        List<BoundLocation> locations = new ArrayList<BoundLocation>();
+        ServerPlayerPool players = Server.getInstance().getServerPlayerPool();
+        players.readLock();
+        try {
+            for (ServerPlayer player : players.getPlayers().values()) {
+                if (player != null && player.getClientLocation() != null) {
+                    locations.add(new BoundLocation(player.getClientLocation()));
+                }
+            }
+        } finally {
+            players.readUnlock();
+        }
+
+        World world = World.getInstance();
+        int maxX = WorldConstants.WORLD_CHUNKS_WIDE;
+        for (int radius = 0; radius <= ServerConstants.CHUNK_PREGENERATION_RADIUS; ++radius) {
+            for (BoundLocation location : locations) {
+                int x = location.getX() / WorldConstants.WORLD_CHUNK_WIDTH;
+                int y = location.getY() / WorldConstants.WORLD_CHUNK_HEIGHT;
+
+                // Prepare every chunk on the ring that is radius chunks away
+                for (int i = -radius; i <= radius; ++i) {
+                    for (int j = -radius; j <= radius; ++j) {
+                        if (Math.abs(i) != radius && Math.abs(j) != radius) {
+                            continue;
+                        }
+                        int chunkX = (x + i) % maxX;
+                        chunkX = chunkX < 0 ? maxX + chunkX : chunkX;
+                        world.prepareChunk(chunkX, y + j);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.unallied.mmoserver.server;
+
+import java.util.ArrayDeque;
+
+/**
+ * Decides which chunks stay in memory.  Every loaded chunk is kept on a
+ * clock.  When the loaded chunks use more memory than the budget, the clock
+ * hand sweeps over them:  a chunk that was used since the hand last passed
+ * it gets a second chance, and any other chunk is unloaded if the world
+ * allows it (see {@link World#unloadChunk(ServerChunk)}).
+ * <br /><br />
+ * Unloaded chunks are read from disk again the next time that they are
+ * needed.
+ * @author Alexandria
+ *
+ */
+final class ChunkResidency {
+
+    /** Every loaded chunk, in the order that the clock hand visits them.  Guarded by this. */
+    private final ArrayDeque<ServerChunk> clock = new ArrayDeque<ServerChunk>();
+
+    /**
+     * Adds a chunk which has just been loaded to the clock.
+     * @param chunk The chunk.
+     */
+    synchronized void add(ServerChunk chunk) {
+        clock.addLast(chunk);
+    }
+
+    /**
+     * Returns the number of chunks on the clock.
+     * @return loadedChunks
+     */
+    synchronized int size() {
+        return clock.size();
+    }
+
+    /**
+     * Returns the approximate number of bytes used by all loaded chunks.
+     * @return bytes
+     */
+    synchronized long getMemoryUsage() {
+        long result = 0;
+        for (ServerChunk chunk : clock) {
+            result += chunk.getMemoryUsage();
+        }
+        return result;
+    }
+
+    /**
+     * Unloads cold chunks until the loaded chunks use at most
+     * <code>budget</code> bytes, or until every chunk has been given its
+     * second chance.
+     * @param world The world that the chunks belong to.
+     * @param budget The number of bytes that loaded chunks may use.
+     * @return the number of chunks that were unloaded.
+     */
+    int trim(World world, long budget) {
+        long usage = getMemoryUsage();
+        int remaining = 2 * size();
+        int unloaded = 0;
+        while (usage > budget && remaining-- > 0) {
+            ServerChunk chunk;
+            synchronized (this) {
+                chunk = clock.pollFirst();
+            }
+            if (chunk == null) {
+                break;
+            }
+            if (!chunk.isLoaded()) {
+                continue; // It is added again when it is loaded
+            }
+            int chunkUsage = chunk.getMemoryUsage();
+            if (!chunk.clearReferenced() && world.unloadChunk(chunk)) {
+                usage -= chunkUsage;
+                ++unloaded;
+            } else {
+                synchronized (this) {
+                    clock.addLast(chunk);
+                }
+            }
+        }
+        return unloaded;
+    }
+}
@@ -0,0 +1,29 @@
+package org.unallied.mmoserver.server;
+
+import org.unallied.mmoserver.constants.ServerConstants;
+
+/**
+ * Periodically unloads chunks that nobody is using so that the loaded chunks
+ * stay within {@link ServerConstants#CHUNK_MEMORY_BUDGET}.  This runs on its
+ * own thread so that the server updater never has to wait for it.
+ * @author Alexandria
+ *
+ */
+public class ChunkUnloader implements Runnable {
+
+    @Override
+    public void run() {
+        while (Server.getInstance().isOnline()) {
+            try {
+                Thread.sleep(ServerConstants.CHUNK_UNLOAD_FREQUENCY);
+            } catch (InterruptedException e) {
+            }
+            try {
+                World.getInstance().trimChunks();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+        System.out.println("Server is not online.  Chunk Unloader has stopped.");
+    }
+}
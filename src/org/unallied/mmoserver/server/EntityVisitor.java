@@ -0,0 +1,18 @@
+package org.unallied.mmoserver.server;
+
+/**
+ * Visits entities (players or monsters) one at a time, such as when visiting
+ * every player near a location.  Visitors let callers look at nearby entities
+ * without building a list of them first.
+ * @author Alexandria
+ *
+ * @param <T> The type of entity being visited.
+ */
+public interface EntityVisitor<T> {
+    
+    /**
+     * Called once for every entity being visited.
+     * @param entity The entity.
+     */
+    public void visit(T entity);
+}
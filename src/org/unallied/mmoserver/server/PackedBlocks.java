@@ -0,0 +1,202 @@
+package org.unallied.mmoserver.server;
+
+import java.util.Arrays;
+
+/**
+ * The blocks of a single chunk, stored as indices into a palette of the
+ * distinct block values in the chunk.  Indices are packed into longs using
+ * 1, 2, 4 or 8 bits each depending on the size of the palette.  If every
+ * block in the chunk has the same value, then no indices are stored at all.
+ * <br /><br />
+ * Once created, the number of bits per block never changes.  If a block value
+ * is set which does not fit in the palette, {@link #set(int, byte)} returns
+ * false and the caller should switch to the result of {@link #grow(int)}.
+ * @author Alexandria
+ *
+ */
+final class PackedBlocks {
+
+    /** The distinct block values in the chunk.  Only the first paletteSize are used. */
+    private final byte[] palette;
+
+    /** The number of values in the palette. */
+    private int paletteSize;
+
+    /** The number of bits per block:  0, 1, 2, 4 or 8. */
+    private final int bits;
+
+    /** log2 of the number of blocks per long. */
+    private final int blocksPerLongShift;
+
+    /** The packed palette indices, or null if there is only one block value. */
+    private final long[] data;
+
+    /**
+     * Creates packed blocks with an empty palette.
+     * @param bits The number of bits per block:  0, 1, 2, 4 or 8.
+     * @param size The number of blocks.
+     */
+    private PackedBlocks(int bits, int size) {
+        this.bits = bits;
+        palette = new byte[bits == 0 ? 1 : 1 << bits];
+        paletteSize = 0;
+        if (bits == 0) {
+            blocksPerLongShift = 0;
+            data = null;
+        } else {
+            blocksPerLongShift = Integer.numberOfTrailingZeros(64 / bits);
+            data = new long[(size * bits + 63) / 64];
+        }
+    }
+
+    /**
+     * Packs an array of block values, using as few bits per block as possible.
+     * @param blocks The block values to pack.
+     * @return packed blocks
+     */
+    static PackedBlocks pack(byte[] blocks) {
+        boolean[] used = new boolean[256];
+        int distinct = 0;
+        for (int i=0; i < blocks.length; ++i) {
+            if (!used[blocks[i] & 0xFF]) {
+                used[blocks[i] & 0xFF] = true;
+                ++distinct;
+            }
+        }
+        int bits = 0;
+        while ((bits == 0 ? 1 : 1 << bits) < distinct) {
+            bits = bits == 0 ? 1 : bits * 2;
+        }
+        PackedBlocks result = new PackedBlocks(bits, blocks.length);
+        for (int i=0; i < blocks.length; ++i) {
+            result.set(i, blocks[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Creates a copy of packed blocks.
+     * @param other The blocks to copy.
+     */
+    private PackedBlocks(PackedBlocks other) {
+        bits = other.bits;
+        blocksPerLongShift = other.blocksPerLongShift;
+        palette = other.palette.clone();
+        paletteSize = other.paletteSize;
+        data = other.data == null ? null : other.data.clone();
+    }
+
+    /**
+     * Returns a copy of these blocks which can be changed without changing
+     * these blocks.
+     * @return copy
+     */
+    PackedBlocks copy() {
+        return new PackedBlocks(this);
+    }
+
+    /**
+     * Returns a copy of these blocks with twice as many bits per block, so
+     * that the palette can hold more values.
+     * @param size The number of blocks.
+     * @return grown blocks
+     */
+    PackedBlocks grow(int size) {
+        PackedBlocks result = new PackedBlocks(bits == 0 ? 1 : bits * 2, size);
+        System.arraycopy(palette, 0, result.palette, 0, paletteSize);
+        result.paletteSize = paletteSize;
+        if (bits == 0) {
+            return result; // Every index is 0 already
+        }
+        for (int i=0; i < size; ++i) {
+            result.setIndex(i, getIndex(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the palette index of a block.
+     * @param index The index of the block.
+     * @return paletteIndex
+     */
+    private int getIndex(int index) {
+        if (bits == 0) {
+            return 0;
+        }
+        int shift = (index & ((1 << blocksPerLongShift) - 1)) * bits;
+        return (int) (data[index >>> blocksPerLongShift] >>> shift) & ((1 << bits) - 1);
+    }
+
+    /**
+     * Sets the palette index of a block.
+     * @param index The index of the block.
+     * @param paletteIndex The index of the block's value in the palette.
+     */
+    private void setIndex(int index, int paletteIndex) {
+        if (bits == 0) {
+            return;
+        }
+        int word = index >>> blocksPerLongShift;
+        int shift = (index & ((1 << blocksPerLongShift) - 1)) * bits;
+        long mask = ((1L << bits) - 1) << shift;
+        data[word] = (data[word] & ~mask) | ((long) paletteIndex << shift);
+    }
+
+    /**
+     * Returns the value of a block.
+     * @param index The index of the block.
+     * @return blockValue
+     */
+    byte get(int index) {
+        return palette[getIndex(index)];
+    }
+
+    /**
+     * Sets the value of a block.
+     * @param index The index of the block.
+     * @param value The value of the block's type.
+     * @return true on success; false if the palette is full and
+     *         {@link #grow(int)} must be used first.
+     */
+    boolean set(int index, byte value) {
+        int paletteIndex = -1;
+        for (int i=0; i < paletteSize; ++i) {
+            if (palette[i] == value) {
+                paletteIndex = i;
+                break;
+            }
+        }
+        if (paletteIndex == -1) {
+            if (paletteSize == palette.length) {
+                return false;
+            }
+            paletteIndex = paletteSize;
+            palette[paletteSize++] = value;
+        }
+        setIndex(index, paletteIndex);
+        return true;
+    }
+
+    /**
+     * Copies all blocks into <code>dst</code>.
+     * @param dst The array to copy the block values into.
+     * @param size The number of blocks.
+     */
+    void copyTo(byte[] dst, int size) {
+        if (bits == 0) {
+            Arrays.fill(dst, 0, size, palette[0]);
+            return;
+        }
+        for (int i=0; i < size; ++i) {
+            dst[i] = palette[getIndex(i)];
+        }
+    }
+
+    /**
+     * Returns the approximate number of bytes used by these blocks.
+     * @return bytes
+     */
+    int getMemoryUsage() {
+        return palette.length + (data == null ? 0 : data.length * 8);
+    }
+}
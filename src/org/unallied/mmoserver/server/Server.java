@@ -3,10 +3,10 @@ package org.unallied.mmoserver.server;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.mina.core.filterchain.IoFilter;
 import org.apache.mina.core.service.IoAcceptor;
@@ -27,9 +27,13 @@ import org.unallied.mmoserver.database.MySQLDatabase;
 import org.unallied.mmoserver.monsters.MonsterSpawner;
 import org.unallied.mmoserver.monsters.ServerMonster;
 import org.unallied.mmoserver.monsters.ServerMonsterManager;
+import org.unallied.mmoserver.net.ChunkPacketCache;
+import org.unallied.mmoserver.net.HandlerPool;
 import org.unallied.mmoserver.net.MMOServerHandler;
 import org.unallied.mmoserver.net.PacketCreator;
 import org.unallied.mmoserver.net.PacketProcessor;
+import org.unallied.mmoserver.net.SharedPacket;
+import org.unallied.mmoserver.net.mina.BufferReleaseFilter;
 import org.unallied.mmoserver.net.mina.MMOCodecFactory;
 
 
@@ -50,6 +54,9 @@ public class Server {
     
     private IoAcceptor acceptor;
     
+    /** The clients with packets waiting to be sent at the end of the tick. */
+    private final Queue<Client> unflushedClients = new ConcurrentLinkedQueue<Client>();
+    
     /** True if the server is online.  False if the server should stop running. */
     private boolean online;
     
@@ -83,8 +90,11 @@ public class Server {
         
         ItemManager.load(ClientConstants.ITEM_PACK_LOCATION);
         ServerMonsterManager.getInstance().load(ClientConstants.MONSTER_PACK_LOCATION);
-        World.getInstance().generateWorld();
+        World.getInstance().load();
         (new Thread(new ServerUpdater())).start();
+        (new Thread(new ChunkPregenerator())).start();
+        (new Thread(new WorldCheckpointer())).start();
+        (new Thread(new ChunkUnloader())).start();
     }
     
     /**
@@ -116,11 +126,18 @@ public class Server {
             public void run() {
                 Server.getInstance().saveCharacters();
                 System.out.println("Characters saved.");
+                World.getInstance().close();
+                System.out.println("World saved.");
+                System.out.println(ChunkPacketCache.getInstance());
+                for (HandlerPool pool : PacketProcessor.getInstance().getPools()) {
+                    System.out.println(pool);
+                }
             }
         });
         database.globalLogout();
 
         acceptor = new NioSocketAcceptor();
+        acceptor.getFilterChain().addLast("bufferRelease", new BufferReleaseFilter());
         acceptor.getFilterChain().addLast("codec", (IoFilter) new ProtocolCodecFilter(new MMOCodecFactory()));
         acceptor.getSessionConfig().setIdleTime(IdleStatus.BOTH_IDLE, ClientConstants.PACKET_TIMEOUT);
         acceptor.setHandler(new MMOServerHandler(PacketProcessor.getInstance()));
@@ -240,31 +257,39 @@ public class Server {
 		return database;
 	}
 
+    /**
+     * Sends a client's waiting packets at the end of the current tick.
+     * @param client The client whose packets are waiting.
+     */
+    public void scheduleFlush(Client client) {
+        unflushedClients.offer(client);
+    }
+    
+    /**
+     * Sends the packets that have been waiting for the end of the tick.  Each
+     * client's packets are sent together as a single write.  This should be
+     * called at the end of every tick.
+     */
+    public void flushClients() {
+        Client client;
+        while ((client = unflushedClients.poll()) != null) {
+            client.flush();
+        }
+    }
+    
     /**
      * Broadcasts to all players near this location.
      * @param location The location to center the broadcast around.
      * @param packet the packet to broadcast
      */
     public void localBroadcast(BoundLocation location, Packet packet) {
-        /*
-         *  For all chunks in the drawn radius (see constants) of the player's
-         *  chunk, send a packet to the players in the chunk.
-         */
-        List<ServerPlayer> players = World.getInstance().getNearbyPlayers(location);
-        Iterator<ServerPlayer> iter = players.iterator();
-        while (iter.hasNext()) {
-            ServerPlayer p = iter.next();
-            try {
-                p.getClient().announce(packet);
-            } catch (NullPointerException e) {
-                if (p != null) {
-                    if (p.getClient() != null) {
-                        logout(p.getClient());
-                    } else {
-                        players.remove(p.getId());
-                    }
-                }
-            }
+        // Encoded once for every player
+        SharedPacket shared = SharedPacket.share(packet);
+        try {
+            // Everyone who can see this location's chunk is subscribed to it
+            World.getInstance().announceToSubscribers(location, shared, null);
+        } finally {
+            shared.release();
         }
     }
 	
@@ -0,0 +1,507 @@
+package org.unallied.mmoserver.server;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.unallied.mmocraft.BlockType;
+import org.unallied.mmocraft.blocks.Block;
+import org.unallied.mmocraft.constants.WorldConstants;
+
+/**
+ * A single chunk of the world.  Blocks are addressed the same way as the
+ * chunk is sent to the client:  column by column, where each column is
+ * WORLD_CHUNK_HEIGHT blocks tall.  In memory, blocks are palette-compressed
+ * (see {@link PackedBlocks}), because most chunks only contain a few distinct
+ * types of blocks.  The chunk is also used for synchronization when changing
+ * its blocks.
+ * <br /><br />
+ * Alongside the blocks, each chunk keeps one bit per block which is set if
+ * the block is collidable.  Movement physics tests these bits directly, so
+ * it never has to unpack a block or look up its {@link Block}.
+ * <br /><br />
+ * Chunks support {@link WorldSnapshot}s.  The first change to a chunk after a
+ * snapshot is taken copies the chunk's blocks, and the old blocks are kept
+ * for as long as a live snapshot might need them.
+ * <br /><br />
+ * The chunk's version doubles as a sequence lock.  It is odd while a block
+ * is being changed, so the current blocks can be copied without locking by
+ * retrying whenever the version changed during the copy (see
+ * {@link #copyTo(byte[])}).
+ * <br /><br />
+ * A chunk which has not been changed since it was saved can be unloaded to
+ * free its memory (see {@link ChunkResidency}).  Its blocks are loaded again
+ * the next time that they are needed, so callers never see an unloaded
+ * chunk.
+ * @author Faythless
+ *
+ */
+public class ServerChunk {
+
+    /** The number of blocks in a chunk. */
+    public static final int SIZE = WorldConstants.WORLD_CHUNK_WIDTH
+            * WorldConstants.WORLD_CHUNK_HEIGHT;
+
+    /** The chunk's x coordinate in chunks. */
+    private final int x;
+
+    /** The chunk's y coordinate in chunks. */
+    private final int y;
+
+    /** The world that this chunk belongs to.  Used to load the chunk again after it is unloaded. */
+    private final World world;
+
+    /** The blocks in this chunk.  Null until the chunk has been loaded. */
+    private volatile PackedBlocks blocks = null;
+
+    /** 
+     * The epoch in which {@link #blocks} were last copied.  The blocks are
+     * only changed in place during this epoch.  Guarded by this.
+     */
+    private long blocksEpoch = 0;
+
+    /** Older blocks kept for snapshots, newest first.  Guarded by this. */
+    private History history = null;
+
+    /** The epochs of the world's snapshots. */
+    private final SnapshotEpochs epochs;
+
+    /**
+     * The blocks of a chunk as they were before a change.
+     * @author Alexandria
+     *
+     */
+    private static final class History {
+        /** The blocks.  These are never changed. */
+        private final PackedBlocks blocks;
+
+        /** The epoch in which these blocks were created. */
+        private final long epoch;
+
+        /** The next older blocks. */
+        private History older;
+
+        private History(PackedBlocks blocks, long epoch, History older) {
+            this.blocks = blocks;
+            this.epoch = epoch;
+            this.older = older;
+        }
+    }
+
+    /** 
+     * One bit per block, set if the block is collidable.  Null until the
+     * chunk has been loaded.
+     */
+    private volatile long[] collidable = null;
+
+    /** Whether each block value is collidable.  Unknown values are collidable. */
+    private static final boolean[] COLLIDABLE_TYPES = new boolean[256];
+
+    static {
+        for (int i=0; i < COLLIDABLE_TYPES.length; ++i) {
+            COLLIDABLE_TYPES[i] = true;
+        }
+        for (BlockType type : BlockType.values()) {
+            Block block = type.getBlock();
+            COLLIDABLE_TYPES[type.getValue() & 0xFF] = block == null || block.isCollidable();
+        }
+    }
+
+    /** The chunk's blocks have not been loaded or generated. */
+    public static final int ABSENT = 0;
+
+    /** The chunk's blocks are being loaded or generated by a thread. */
+    public static final int GENERATING = 1;
+
+    /** The chunk's blocks are in memory and ready to use. */
+    public static final int READY = 2;
+
+    /** One of {@link #ABSENT}, {@link #GENERATING} or {@link #READY}. */
+    private final AtomicInteger state = new AtomicInteger(ABSENT);
+
+    /** 
+     * Incremented before and after every change to a block in this chunk, so
+     * it is odd while a change is in progress.  Used to tell whether a copy
+     * of this chunk (such as a cached packet) is out of date.  Only changed
+     * while holding this.
+     */
+    private volatile int version = 0;
+
+    /** Set when the chunk is used, and cleared by {@link ChunkResidency}'s clock. */
+    private volatile boolean referenced = false;
+
+    /**
+     * Creates an empty chunk.  No memory is allocated for its blocks
+     * until the chunk is loaded.
+     * @param world The world that this chunk belongs to.
+     * @param x The chunk's x coordinate in chunks.
+     * @param y The chunk's y coordinate in chunks.
+     * @param epochs The epochs of the world's snapshots.
+     */
+    ServerChunk(World world, int x, int y, SnapshotEpochs epochs) {
+        this.world = world;
+        this.x = x;
+        this.y = y;
+        this.epochs = epochs;
+    }
+
+    /**
+     * Returns the index of a block inside of a chunk's block array.
+     * @param x The x block coordinate of the world
+     * @param y The y block coordinate of the world
+     * @return index
+     */
+    public static int getIndex(int x, int y) {
+        return (x % WorldConstants.WORLD_CHUNK_WIDTH) * WorldConstants.WORLD_CHUNK_HEIGHT
+                + (y % WorldConstants.WORLD_CHUNK_HEIGHT);
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Returns the chunkId, which is defined as (y << 32) | x.
+     * @return chunkId
+     */
+    public long getId() {
+        return ((long) y << 32) | x;
+    }
+
+    /**
+     * Returns true if this chunk's blocks are in memory.
+     * @return loaded
+     */
+    public boolean isLoaded() {
+        return state.get() == READY;
+    }
+
+    /**
+     * Returns the state of this chunk.
+     * @return {@link #ABSENT}, {@link #GENERATING} or {@link #READY}
+     */
+    public int getState() {
+        return state.get();
+    }
+
+    /**
+     * Attempts to claim this chunk for loading.  Only one thread can claim
+     * a chunk.  The thread that claims it must call {@link #finishLoading()}
+     * or {@link #abortLoading()} when it is done.
+     * @return true if this thread should load the chunk.
+     */
+    boolean startLoading() {
+        return state.compareAndSet(ABSENT, GENERATING);
+    }
+
+    /**
+     * Marks this chunk as ready.  This must be called after all of the
+     * chunk's blocks have been filled in.
+     */
+    synchronized void finishLoading() {
+        state.set(READY);
+        notifyAll();
+    }
+
+    /**
+     * Gives up on loading this chunk so that another thread can try again.
+     */
+    synchronized void abortLoading() {
+        state.set(ABSENT);
+        notifyAll();
+    }
+
+    /**
+     * Waits until no other thread is loading this chunk.  Interrupts don't
+     * stop the wait, because the caller needs the chunk either way; the
+     * thread is interrupted again once the chunk is done.
+     */
+    synchronized void awaitLoading() {
+        boolean interrupted = false;
+        while (state.get() == GENERATING) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Throws away this chunk's blocks so that their memory can be reused.
+     * The chunk is loaded again the next time that it is needed, so this must
+     * only be called if the blocks on disk are the same as the blocks in
+     * memory.
+     * @return true if the chunk was unloaded; false if it is not loaded, or
+     *         if a live snapshot may still need blocks kept by this chunk.
+     */
+    synchronized boolean unload() {
+        if (state.get() != READY || epochs.getOldest() < blocksEpoch) {
+            return false;
+        }
+        // Snapshots newer than the last copy read the same blocks as the disk
+        state.set(ABSENT);
+        history = null;
+        blocks = null;
+        collidable = null;
+        referenced = false;
+        return true;
+    }
+
+    /**
+     * Marks this chunk as recently used.
+     */
+    void reference() {
+        if (!referenced) {
+            referenced = true;
+        }
+    }
+
+    /**
+     * Clears the mark set by {@link #reference()}.
+     * @return true if the chunk was used since the last time this was called.
+     */
+    boolean clearReferenced() {
+        if (referenced) {
+            referenced = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns this chunk's blocks, loading them again if the chunk was
+     * unloaded.
+     * @return blocks
+     */
+    private PackedBlocks getLoadedBlocks() {
+        PackedBlocks result = blocks;
+        while (result == null) {
+            world.loadChunk(x, y);
+            result = blocks;
+        }
+        return result;
+    }
+
+    /**
+     * Returns this chunk's collision bits, loading them again if the chunk
+     * was unloaded.
+     * @return collision bits
+     */
+    private long[] getLoadedCollidable() {
+        long[] result = collidable;
+        while (result == null) {
+            world.loadChunk(x, y);
+            result = collidable;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the version of this chunk.  The version changes every time a
+     * block in this chunk changes, and is odd while a change is in progress.
+     * @return version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets all of the chunk's blocks.  This should only be called while
+     * loading the chunk.  The chunk is not considered loaded until
+     * {@link #finishLoading()} is called.
+     * @param blocks The block values, laid out as described in {@link ServerChunk}.
+     */
+    void setBlocks(byte[] blocks) {
+        long[] collidable = new long[(SIZE + 63) / 64];
+        for (int i=0; i < SIZE; ++i) {
+            if (COLLIDABLE_TYPES[blocks[i] & 0xFF]) {
+                collidable[i >> 6] |= 1L << i;
+            }
+        }
+        this.collidable = collidable;
+        this.blocks = PackedBlocks.pack(blocks);
+    }
+
+    /**
+     * Returns the value of a block in this chunk.
+     * @param index The index of the block from {@link #getIndex(int, int)}.
+     * @return blockValue
+     */
+    public byte getBlock(int index) {
+        return getLoadedBlocks().get(index);
+    }
+
+    /**
+     * Sets the value of a block in this chunk.  If the chunk's palette is
+     * full, it is upgraded to use more bits per block.
+     * @param index The index of the block from {@link #getIndex(int, int)}.
+     * @param value The value of the block's type.
+     */
+    public synchronized void setBlock(int index, byte value) {
+        // Holding the lock keeps the chunk from being unloaded again
+        PackedBlocks current = getLoadedBlocks();
+        long[] collidable = getLoadedCollidable();
+        ++version; // Odd, so lock-free readers will retry
+        // Otherwise the block stores could be seen before the odd version
+        VarHandle.releaseFence();
+        try {
+            setBlock(index, value, current, collidable);
+        } finally {
+            ++version;
+        }
+    }
+
+    /**
+     * Sets the value of a block while holding this chunk's lock.
+     * @param index The index of the block from {@link #getIndex(int, int)}.
+     * @param value The value of the block's type.
+     * @param current The chunk's current blocks.
+     * @param collidable The chunk's collision bits.
+     */
+    private void setBlock(int index, byte value, PackedBlocks current, long[] collidable) {
+        long epoch = epochs.get();
+        if (blocksEpoch < epoch) {
+            // First change since a snapshot was taken
+            long oldest = epochs.getOldest();
+            if (oldest < epoch) {
+                // A live snapshot may be reading the current blocks, so leave them alone
+                history = new History(current, blocksEpoch, history);
+                prune(oldest);
+                current = current.copy();
+                blocks = current;
+            } else {
+                history = null;
+            }
+            blocksEpoch = epoch;
+        }
+        if (!current.set(index, value)) {
+            current = current.grow(SIZE);
+            current.set(index, value);
+            blocks = current;
+        }
+        if (COLLIDABLE_TYPES[value & 0xFF]) {
+            collidable[index >> 6] |= 1L << index;
+        } else {
+            collidable[index >> 6] &= ~(1L << index);
+        }
+    }
+
+    /**
+     * Returns whether a block in this chunk is collidable.  This is cheaper
+     * than looking up the block with {@link #getBlock(int)}.
+     * @param index The index of the block from {@link #getIndex(int, int)}.
+     * @return true if the block is collidable.
+     */
+    public boolean isCollidable(int index) {
+        return (getLoadedCollidable()[index >> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Returns the collision bits of one column of this chunk.  Bit i is set
+     * if the block in row i (counting down from the top of the chunk) is
+     * collidable.  Chunks may be at most 64 blocks tall.
+     * @param column The x coordinate of the column inside of this chunk.
+     * @return collision bits
+     */
+    public long getCollidableColumn(int column) {
+        final int height = WorldConstants.WORLD_CHUNK_HEIGHT;
+        long[] collidable = getLoadedCollidable();
+        int start = column * height;
+        int shift = start & 63;
+        long result = collidable[start >> 6] >>> shift;
+        if (shift + height > 64) {
+            result |= collidable[(start >> 6) + 1] << (64 - shift);
+        }
+        return height == 64 ? result : result & ((1L << height) - 1);
+    }
+
+    /**
+     * Throws away the blocks which no live snapshot can read.  A snapshot
+     * reads the newest blocks created in or before its epoch, so everything
+     * older than that for the oldest snapshot is not needed.
+     * @param oldest The epoch of the oldest live snapshot.
+     */
+    private void prune(long oldest) {
+        for (History h = history; h != null; h = h.older) {
+            if (h.epoch <= oldest) {
+                h.older = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies all blocks in this chunk into <code>dst</code> without locking.
+     * If a block changes during the copy, the copy is started over, so the
+     * result never contains half of a change.
+     * @param dst An array of at least {@link #SIZE} bytes.
+     * @return the version of the chunk that was copied.
+     */
+    int copyTo(byte[] dst) {
+        while (true) {
+            int before = version;
+            if ((before & 1) == 0) {
+                // Blocks that are being changed are never invalid, only out of date
+                getLoadedBlocks().copyTo(dst, SIZE);
+                // Otherwise the copy could read blocks after the version is checked
+                VarHandle.acquireFence();
+                if (version == before) {
+                    return before;
+                }
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Copies all blocks in this chunk into <code>dst</code>, as they were
+     * when a snapshot was taken.
+     * @param dst An array of at least {@link #SIZE} bytes.
+     * @param epoch The epoch of the snapshot.
+     */
+    void copyTo(byte[] dst, long epoch) {
+        PackedBlocks result = null;
+        while (result == null) {
+            synchronized (this) {
+                if (blocksEpoch <= epoch) {
+                    // Unchanged since the snapshot, and any change will copy it first
+                    result = blocks;
+                } else {
+                    for (History h = history; h != null; h = h.older) {
+                        if (h.epoch <= epoch) {
+                            result = h.blocks;
+                            break;
+                        }
+                    }
+                    if (result == null) {
+                        throw new IllegalStateException("The blocks for epoch " + epoch + " have been released.");
+                    }
+                }
+            }
+            if (result == null) {
+                // Unloaded, but unchanged since the snapshot, so the disk has the same blocks
+                world.loadChunk(x, y);
+            }
+        }
+        // The blocks are never changed again, so they can be copied without the lock
+        result.copyTo(dst, SIZE);
+    }
+
+    /**
+     * Returns the approximate number of bytes used by this chunk's blocks
+     * and collision bits.
+     * @return bytes, or 0 if the chunk is not loaded.
+     */
+    public int getMemoryUsage() {
+        PackedBlocks current = blocks;
+        return current == null ? 0 : current.getMemoryUsage() + (SIZE + 63) / 64 * 8;
+    }
+}
@@ -1,12 +1,12 @@
 package org.unallied.mmoserver.server;
 
 import java.awt.Rectangle;
-import java.util.List;
 
 import org.unallied.mmocraft.BlockType;
 import org.unallied.mmocraft.BoundLocation;
 import org.unallied.mmocraft.CollisionBlob;
 import org.unallied.mmocraft.Direction;
+import org.unallied.mmocraft.Living;
 import org.unallied.mmocraft.Location;
 import org.unallied.mmocraft.Player;
 import org.unallied.mmocraft.RawPoint;
@@ -145,25 +145,11 @@ public class ServerPlayer extends Player {
      * @return
      */
     public Location collide(Location start, Location end) {
-        Location result = new BoundLocation(start);
         try {
-            World world = World.getInstance();
-            
-            // If air
-            Location horizontalCollide = new BoundLocation(world.collideWithBlock(start, end));
-            result.setRawX(horizontalCollide.getRawX());
-            
-            // Vertical testing
-            if (end.getRawY() != start.getRawY()) {
-                Location verticalEnd = new BoundLocation(result);
-                verticalEnd.setRawY(horizontalCollide.getRawY());
-                               
-                result = horizontalCollide;
-            }
+            return new BoundLocation(World.getInstance().collideWithBlock(start, end));
         } catch (NullPointerException e) {
-            
+            return new BoundLocation(start);
         }
-        return result;
     }
     
     @Override
@@ -173,12 +159,10 @@ public class ServerPlayer extends Player {
      * @return stuck.  True if the player is stuck; else false.
      */
     public boolean isStuck() {
-        for (RawPoint p : hitbox) {
-            Location start = new Location(location);
-            start.moveRawRight(p.getX());
-            start.moveRawDown(p.getY());
-            Block block = World.getInstance().getBlock(start);
-            if (block != null && block.isCollidable()) {
+        World world = World.getInstance();
+        for (int i=0; i < hitbox.size(); ++i) {
+            RawPoint p = hitbox.get(i);
+            if (world.isCollidableRaw(location.getRawX() + p.getX(), location.getRawY() + p.getY())) {
                 return true;
             }
         }
@@ -224,7 +208,7 @@ public class ServerPlayer extends Player {
                         int chunkX = x / WorldConstants.WORLD_CHUNK_WIDTH;
                         int chunkY = y / WorldConstants.WORLD_CHUNK_HEIGHT; 
                         synchronized (World.getInstance().getChunkObject(chunkX, chunkY)) {
-                            if (World.getInstance().getBlock(x, y).isCollidable()) {
+                            if (World.getInstance().isCollidable(x, y)) {
                                 int xOff = 0;
                                 if (direction == Direction.RIGHT) {
                                     xOff = (int) (((x - this.location.getX()) * WorldConstants.WORLD_BLOCK_WIDTH - horizontalOffset - collisionArc[curIndex].getXOffset() - this.location.getXOffset()));
@@ -248,6 +232,103 @@ public class ServerPlayer extends Player {
         } while (curIndex != endingIndex);
     }
     
+    /**
+     * Damages the players and monsters hit by one segment of a collision arc.
+     * One visitor is reused for every segment of an attack instead of creating
+     * one for each segment.
+     */
+    private class CollisionVisitor implements EntityVisitor<Living> {
+        private final CollisionBlob[] collisionArc;
+        private final float horizontalOffset;
+        private final float verticalOffset;
+
+        /** The index of the segment being checked. */
+        private int segment;
+
+        /** The top left corner of the segment. */
+        private Location topLeft;
+
+        /** The segment's rectangle, relative to {@link #topLeft}. */
+        private LongRectangle collisionRect;
+
+        private CollisionVisitor(CollisionBlob[] collisionArc, float horizontalOffset,
+                float verticalOffset) {
+            this.collisionArc = collisionArc;
+            this.horizontalOffset = horizontalOffset;
+            this.verticalOffset = verticalOffset;
+        }
+
+        @Override
+        public void visit(Living target) {
+            if (target instanceof ServerPlayer) {
+                ServerPlayer player = (ServerPlayer) target;
+                if (player != ServerPlayer.this && player.isAlive() && player.isPvPFlagEnabled() && !player.current.isInvincible()) {
+                    player.update();
+                    if (hits(player.getLocation(), player.getWidth(), player.getHeight())) {
+                        float damage = getDamage(player.getLocation(), player.getWidth(), player.getHeight());
+                        int multipliedDamage = (int)Math.round(getPvPDamageMultiplier() * damage);
+                        player.damage(ServerPlayer.this, multipliedDamage);
+                        // Refresh PvP duration for the client
+                        if (ServerPlayer.this.pvpExpireTime != -1) {
+                            ServerPlayer.this.setPvPTime(System.currentTimeMillis() + ClientConstants.PVP_FLAG_DURATION);
+                        }
+                    }
+                }
+            } else if (target instanceof ServerMonster) {
+                ServerMonster monster = (ServerMonster) target;
+                if (monster.isAlive() && !monster.getCurrent().isInvincible()) {
+                    monster.update();
+                    if (hits(monster.getLocation(), monster.getWidth(), monster.getHeight())) {
+                        float damage = getDamage(monster.getLocation(), monster.getWidth(), monster.getHeight());
+                        int multipliedDamage = (int)Math.round(getPvMDamageMultiplier() * damage);
+                        monster.damage(ServerPlayer.this, multipliedDamage);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns whether a target is touching the segment being checked.
+         * @param targetLocation The target's location.
+         * @param width The target's width in pixels.
+         * @param height The target's height in pixels.
+         * @return true if the target has been hit.
+         */
+        private boolean hits(Location targetLocation, int width, int height) {
+            /*
+             *  We need the targetRect to be offset based on the difference 
+             *  between it and the attacking player's location.  Otherwise
+             *  we will fail to detect a collision at (0, 0) where the world
+             *  wraps around.
+             */
+            LongRectangle targetRect = new LongRectangle(targetLocation.getRawDeltaX(topLeft), 
+                    targetLocation.getRawDeltaY(topLeft),
+                    width * Location.BLOCK_GRANULARITY / WorldConstants.WORLD_BLOCK_WIDTH,
+                    height * Location.BLOCK_GRANULARITY / WorldConstants.WORLD_BLOCK_HEIGHT);
+            return targetRect.intersects(collisionRect);
+        }
+
+        /**
+         * Returns the damage that the segment being checked does to a target
+         * which it has hit.
+         * @param targetLocation The target's location.
+         * @param width The target's width in pixels.
+         * @param height The target's height in pixels.
+         * @return damage
+         */
+        private float getDamage(Location targetLocation, int width, int height) {
+            int xOff = 0;
+            if (direction == Direction.RIGHT) {
+                xOff = (int) ((targetLocation.getRawDeltaX(ServerPlayer.this.location) * WorldConstants.WORLD_BLOCK_WIDTH / Location.BLOCK_GRANULARITY) - horizontalOffset - collisionArc[segment].getXOffset());
+            } else {
+                xOff = (int) (current.getWidth() - (ServerPlayer.this.location.getRawDeltaX(targetLocation) * WorldConstants.WORLD_BLOCK_WIDTH / Location.BLOCK_GRANULARITY + getWidth() - horizontalOffset + collisionArc[segment].getFlipped().getXOffset()));
+            }
+            int yOff = (int) ((targetLocation.getRawDeltaY(ServerPlayer.this.location) * WorldConstants.WORLD_BLOCK_HEIGHT / Location.BLOCK_GRANULARITY - verticalOffset - collisionArc[segment].getYOffset()));
+            return (direction == Direction.RIGHT ? collisionArc[segment] : collisionArc[segment].getFlipped()).getDamage(
+                    new Rectangle(width, height), xOff, yOff);
+        }
+    }
+
     /**
      * Performs all checks needed to check whether a player has hit another player.
      * @param collisionArc
@@ -261,6 +342,7 @@ public class ServerPlayer extends Player {
         if (this.getPvPTime() == 0 || !this.isAlive()) { // The player doesn't have their PvP enabled.
             return;
         }
+        CollisionVisitor visitor = new CollisionVisitor(collisionArc, horizontalOffset, verticalOffset);
         int curIndex = startingIndex - 1;
         do {
             curIndex = (curIndex + 1) % collisionArc.length;
@@ -283,41 +365,11 @@ public class ServerPlayer extends Player {
                  *  Using this, we need to grab every player in our rectangle for collision
                  *  testing.
                  */
-                List<ServerPlayer> players = World.getInstance().getNearbyPlayers(location);
-                LongRectangle collisionRect = new LongRectangle(0, 0, 
+                visitor.segment = curIndex;
+                visitor.topLeft = topLeft;
+                visitor.collisionRect = new LongRectangle(0, 0, 
                         bottomRight.getRawDeltaX(topLeft), bottomRight.getRawDeltaY(topLeft));
-                for (ServerPlayer player : players) {
-                    /*
-                     *  We need the playerRect to be offset based on the difference 
-                     *  between it and the attacking player's location.  Otherwise
-                     *  we will fail to detect a collision at (0, 0) where the world
-                     *  wraps around.
-                     */
-                    if (player != this && player.isAlive() && player.isPvPFlagEnabled() && !player.current.isInvincible()) {
-                        player.update();
-                        LongRectangle playerRect = new LongRectangle(player.getLocation().getRawDeltaX(topLeft), 
-                                player.getLocation().getRawDeltaY(topLeft),
-                                player.getWidth() * Location.BLOCK_GRANULARITY / WorldConstants.WORLD_BLOCK_WIDTH,
-                                player.getHeight() * Location.BLOCK_GRANULARITY / WorldConstants.WORLD_BLOCK_HEIGHT);
-                        if (playerRect.intersects(collisionRect)) {
-                            int xOff = 0;
-                            if (direction == Direction.RIGHT) {
-                                xOff = (int) ((player.getLocation().getRawDeltaX(this.location) * WorldConstants.WORLD_BLOCK_WIDTH / Location.BLOCK_GRANULARITY) - horizontalOffset - collisionArc[curIndex].getXOffset());
-                            } else {
-                                xOff = (int) (current.getWidth() - (this.location.getRawDeltaX(player.getLocation()) * WorldConstants.WORLD_BLOCK_WIDTH / Location.BLOCK_GRANULARITY + getWidth() - horizontalOffset + collisionArc[curIndex].getFlipped().getXOffset()));
-                            }
-                            int yOff = (int) ((player.getLocation().getRawDeltaY(this.location) * WorldConstants.WORLD_BLOCK_HEIGHT / Location.BLOCK_GRANULARITY - verticalOffset - collisionArc[curIndex].getYOffset()));
-                            float damage =  (direction == Direction.RIGHT ? collisionArc[curIndex] : collisionArc[curIndex].getFlipped()).getDamage(
-                                    new Rectangle(player.getWidth(), player.getHeight()), xOff, yOff);
-                            int multipliedDamage = (int)Math.round(getPvPDamageMultiplier() * damage);
-                            player.damage(this, multipliedDamage);
-                            // Refresh PvP duration for the client
-                            if (this.pvpExpireTime != -1) {
-                                this.setPvPTime(System.currentTimeMillis() + ClientConstants.PVP_FLAG_DURATION);
-                            }
-                        }
-                    }
-                }
+                World.getInstance().forEachNearbyPlayer(location, WorldConstants.WORLD_DRAW_DISTANCE, visitor);
             }
         } while (curIndex != endingIndex);
     }
@@ -332,6 +384,7 @@ public class ServerPlayer extends Player {
      */
     public void performMonsterCollisions(CollisionBlob[] collisionArc, int startingIndex,
             int endingIndex, float horizontalOffset, float verticalOffset) {
+        CollisionVisitor visitor = new CollisionVisitor(collisionArc, horizontalOffset, verticalOffset);
         int curIndex = startingIndex - 1;
         do {
             curIndex = (curIndex + 1) % collisionArc.length;
@@ -354,37 +407,11 @@ public class ServerPlayer extends Player {
                  *  Using this, we need to grab every player in our rectangle for collision
                  *  testing.
                  */
-                List<ServerMonster> monsters = World.getInstance().getNearbyMonsters(location);
-                LongRectangle collisionRect = new LongRectangle(0, 0, 
+                visitor.segment = curIndex;
+                visitor.topLeft = topLeft;
+                visitor.collisionRect = new LongRectangle(0, 0, 
                         bottomRight.getRawDeltaX(topLeft), bottomRight.getRawDeltaY(topLeft));
-                for (ServerMonster monster : monsters) {
-                    /*
-                     *  We need the playerRect to be offset based on the difference 
-                     *  between it and the attacking player's location.  Otherwise
-                     *  we will fail to detect a collision at (0, 0) where the world
-                     *  wraps around.
-                     */
-                    if (monster.isAlive() && !monster.getCurrent().isInvincible()) {
-                        monster.update();
-                        LongRectangle playerRect = new LongRectangle(monster.getLocation().getRawDeltaX(topLeft), 
-                                monster.getLocation().getRawDeltaY(topLeft),
-                                monster.getWidth() * Location.BLOCK_GRANULARITY / WorldConstants.WORLD_BLOCK_WIDTH,
-                                monster.getHeight() * Location.BLOCK_GRANULARITY / WorldConstants.WORLD_BLOCK_HEIGHT);
-                        if (playerRect.intersects(collisionRect)) {
-                            int xOff = 0;
-                            if (direction == Direction.RIGHT) {
-                                xOff = (int) ((monster.getLocation().getRawDeltaX(this.location) * WorldConstants.WORLD_BLOCK_WIDTH / Location.BLOCK_GRANULARITY) - horizontalOffset - collisionArc[curIndex].getXOffset());
-                            } else {
-                                xOff = (int) (current.getWidth() - (this.location.getRawDeltaX(monster.getLocation()) * WorldConstants.WORLD_BLOCK_WIDTH / Location.BLOCK_GRANULARITY + getWidth() - horizontalOffset + collisionArc[curIndex].getFlipped().getXOffset()));
-                            }
-                            int yOff = (int) ((monster.getLocation().getRawDeltaY(this.location) * WorldConstants.WORLD_BLOCK_HEIGHT / Location.BLOCK_GRANULARITY - verticalOffset - collisionArc[curIndex].getYOffset()));
-                            float damage =  (direction == Direction.RIGHT ? collisionArc[curIndex] : collisionArc[curIndex].getFlipped()).getDamage(
-                                    new Rectangle(monster.getWidth(), monster.getHeight()), xOff, yOff);
-                            int multipliedDamage = (int)Math.round(getPvMDamageMultiplier() * damage);
-                            monster.damage(this, multipliedDamage);
-                        }
-                    }
-                }
+                World.getInstance().forEachNearbyMonster(location, WorldConstants.WORLD_DRAW_DISTANCE, visitor);
             }
         } while (curIndex != endingIndex);
     }
@@ -765,11 +792,8 @@ public class ServerPlayer extends Player {
         if (!isAlive()) {
             synchronized (this) {
                 setHpCurrent(getHpMax());
-                setRawX(0);
-                setRawY(0);
                 current = new SwordIdle(this, current);
-                accelerateDown(100000, 100f, 100f);
-                update(100000);
+                setLocation(World.getInstance().getGroundLocation(new BoundLocation(0, 0, 0, 0)));
             }
             client.announce(PacketCreator.getRevive(this));
         }
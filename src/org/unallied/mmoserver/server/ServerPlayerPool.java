@@ -7,6 +7,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.unallied.mmocraft.net.Packet;
 import org.unallied.mmoserver.client.Client;
+import org.unallied.mmoserver.net.SharedPacket;
 
 
 /**
@@ -61,18 +62,21 @@ public class ServerPlayerPool {
 	 */
     public void globalBroadcast(Packet packet) {
     	if (packet != null) {
+    	    // Encoded once for every player
+    	    SharedPacket shared = SharedPacket.share(packet);
 	    	readLock.lock();
 	    	try {
 	    		for (ServerPlayer player : pool.values()) {
 	    			if (player != null) {
 	    				Client c = player.getClient();
 	    				if (c != null) {
-	    					c.announce(packet);
+	    					c.announce(shared);
 	    				}
 	    			}
 	    		}
 	    	} finally {
 	    		readLock.unlock();
+	    		shared.release();
 	    	}
     	}
     }
@@ -37,6 +37,13 @@ public class ServerUpdater implements Runnable {
                 t.printStackTrace();
             }
             
+            // Send everything that this tick told the clients about
+            try {
+                Server.getInstance().flushClients();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+            
             // Save all players every minute
             characterSaveElapsedTime += delta;
             if (characterSaveElapsedTime > ServerConstants.SAVE_ALL_CHARACTERS_FREQUENCY) {
@@ -0,0 +1,79 @@
+package org.unallied.mmoserver.server;
+
+import java.util.TreeMap;
+
+/**
+ * Hands out the epochs used by {@link WorldSnapshot}.  Taking a snapshot
+ * ends the current epoch.  Every change made to a chunk after that belongs
+ * to a later epoch, so the first change to each chunk copies the chunk's
+ * blocks and leaves the old blocks for the snapshot.
+ * <br /><br />
+ * The epochs of all snapshots that have not been released are kept, so that
+ * chunks only keep old blocks while a snapshot might still need them.
+ * @author Alexandria
+ *
+ */
+final class SnapshotEpochs {
+
+    /** The current epoch.  Only changed while holding {@link #live}. */
+    private volatile long current = 0;
+
+    /** The epoch of the oldest live snapshot, or Long.MAX_VALUE if there are none. */
+    private volatile long oldest = Long.MAX_VALUE;
+
+    /** The number of live snapshots of each epoch. */
+    private final TreeMap<Long, Integer> live = new TreeMap<Long, Integer>();
+
+    /**
+     * Returns the current epoch.  Changes made now belong to this epoch.
+     * @return epoch
+     */
+    long get() {
+        return current;
+    }
+
+    /**
+     * Returns the epoch of the oldest snapshot which has not been released.
+     * This must be read after {@link #get()}.
+     * @return epoch, or Long.MAX_VALUE if there are no live snapshots.
+     */
+    long getOldest() {
+        return oldest;
+    }
+
+    /**
+     * Ends the current epoch and returns it as the epoch of a new snapshot.
+     * The snapshot is live until it is passed to {@link #close(long)}.
+     * @return epoch
+     */
+    long open() {
+        synchronized (live) {
+            long epoch = current;
+            Integer count = live.get(epoch);
+            live.put(epoch, count == null ? 1 : count + 1);
+            oldest = live.firstKey();
+            // The snapshot must be live before any change can see the next epoch
+            current = epoch + 1;
+            return epoch;
+        }
+    }
+
+    /**
+     * Releases a snapshot returned by {@link #open()}.
+     * @param epoch The epoch of the snapshot.
+     */
+    void close(long epoch) {
+        synchronized (live) {
+            Integer count = live.get(epoch);
+            if (count == null) {
+                return;
+            }
+            if (count == 1) {
+                live.remove(epoch);
+            } else {
+                live.put(epoch, count - 1);
+            }
+            oldest = live.isEmpty() ? Long.MAX_VALUE : live.firstKey();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.unallied.mmoserver.server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.unallied.mmocraft.constants.WorldConstants;
+
+/**
+ * Keeps track of which entities (players or monsters) are in each chunk of
+ * the world.  Chunks are keyed by their chunk id, (y << 32) | x, and entities
+ * by their int id.
+ * <br /><br />
+ * Each chunk holds an immutable array of its entities.  Changes copy the
+ * array and swap it in with a compare-and-set, so readers never lock and
+ * never wait for a writer, and writers only contend with other writers of
+ * the same chunk.  Chunks rarely hold more than a few entities, so copying
+ * is cheap.
+ * @author Alexandria
+ *
+ * @param <T> The type of entity in the index.
+ */
+public class SpatialIndex<T> {
+
+    /**
+     * The entities in a single chunk.  Cells are never modified once they
+     * have been published.
+     * @author Alexandria
+     *
+     */
+    private static final class Cell {
+        private static final Cell EMPTY = new Cell(new int[0], new Object[0]);
+
+        private final int[] ids;
+        private final Object[] entities;
+
+        private Cell(int[] ids, Object[] entities) {
+            this.ids = ids;
+            this.entities = entities;
+        }
+
+        private int indexOf(int id) {
+            for (int i=0; i < ids.length; ++i) {
+                if (ids[i] == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /** The entities of every chunk, indexed by x * WORLD_CHUNKS_TALL + y. */
+    private final AtomicReferenceArray<Cell> cells;
+
+    public SpatialIndex() {
+        int size = WorldConstants.WORLD_CHUNKS_WIDE * WorldConstants.WORLD_CHUNKS_TALL;
+        cells = new AtomicReferenceArray<Cell>(size);
+        for (int i=0; i < size; ++i) {
+            cells.lazySet(i, Cell.EMPTY);
+        }
+    }
+
+    /**
+     * Returns the index of a chunk in {@link #cells}.
+     * @param chunkId (y << 32) | x
+     * @return index, or -1 if the chunk is not in the world
+     */
+    private static int getCellIndex(long chunkId) {
+        int x = (int) ((chunkId << 32) >> 32);
+        int y = (int) (chunkId >> 32);
+        if (x < 0 || y < 0 || x >= WorldConstants.WORLD_CHUNKS_WIDE
+                || y >= WorldConstants.WORLD_CHUNKS_TALL) { // Guard
+            return -1;
+        }
+        return x * WorldConstants.WORLD_CHUNKS_TALL + y;
+    }
+
+    /**
+     * Adds an entity to a chunk.  If the chunk already contains an entity
+     * with the same id, it is replaced.
+     * @param chunkId The chunk to add the entity to.
+     * @param id The id of the entity.
+     * @param entity The entity.
+     */
+    public void add(long chunkId, int id, T entity) {
+        int index = getCellIndex(chunkId);
+        if (index == -1) {
+            return;
+        }
+        while (true) {
+            Cell cell = cells.get(index);
+            int position = cell.indexOf(id);
+            int[] ids;
+            Object[] entities;
+            if (position == -1) {
+                int length = cell.ids.length;
+                ids = new int[length + 1];
+                entities = new Object[length + 1];
+                System.arraycopy(cell.ids, 0, ids, 0, length);
+                System.arraycopy(cell.entities, 0, entities, 0, length);
+                ids[length] = id;
+                position = length;
+            } else {
+                ids = cell.ids; // The ids don't change, so the array can be shared
+                entities = cell.entities.clone();
+            }
+            entities[position] = entity;
+            if (cells.compareAndSet(index, cell, new Cell(ids, entities))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes an entity from a chunk.
+     * @param chunkId The chunk to remove the entity from.
+     * @param id The id of the entity.
+     * @return true if the entity was in the chunk.
+     */
+    public boolean remove(long chunkId, int id) {
+        int index = getCellIndex(chunkId);
+        if (index == -1) {
+            return false;
+        }
+        while (true) {
+            Cell cell = cells.get(index);
+            int position = cell.indexOf(id);
+            if (position == -1) {
+                return false;
+            }
+            Cell result = Cell.EMPTY;
+            int length = cell.ids.length - 1;
+            if (length > 0) {
+                int[] ids = new int[length];
+                Object[] entities = new Object[length];
+                System.arraycopy(cell.ids, 0, ids, 0, position);
+                System.arraycopy(cell.entities, 0, entities, 0, position);
+                System.arraycopy(cell.ids, position + 1, ids, position, length - position);
+                System.arraycopy(cell.entities, position + 1, entities, position, length - position);
+                result = new Cell(ids, entities);
+            }
+            if (cells.compareAndSet(index, cell, result)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Moves an entity from one chunk to another.  The entity is removed from
+     * its old chunk before it is added to the new one, so a reader will never
+     * see it twice, but may briefly not see it at all.
+     * @param oldChunkId The chunk the entity is leaving.
+     * @param newChunkId The chunk the entity is entering.
+     * @param id The id of the entity.
+     * @param entity The entity.
+     */
+    public void move(long oldChunkId, long newChunkId, int id, T entity) {
+        if (oldChunkId != newChunkId) {
+            remove(oldChunkId, id);
+            add(newChunkId, id, entity);
+        }
+    }
+
+    /**
+     * Returns the number of entities in a chunk.
+     * @param chunkId The chunk.
+     * @return count
+     */
+    public int count(long chunkId) {
+        int index = getCellIndex(chunkId);
+        return index == -1 ? 0 : cells.get(index).ids.length;
+    }
+
+    /**
+     * Visits every entity in the chunks within <code>radius</code> chunks of
+     * (chunkX, chunkY).  The world wraps horizontally, but chunks above or
+     * below the world are skipped.  Nothing is allocated while visiting.
+     * @param chunkX The x coordinate of the center chunk.
+     * @param chunkY The y coordinate of the center chunk.
+     * @param radius The number of chunks to visit in each direction.
+     * @param visitor Called for every entity.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachNear(int chunkX, int chunkY, int radius, EntityVisitor<? super T> visitor) {
+        int maxX = WorldConstants.WORLD_CHUNKS_WIDE;
+        int minY = Math.max(chunkY - radius, 0);
+        int maxY = Math.min(chunkY + radius, WorldConstants.WORLD_CHUNKS_TALL - 1);
+        for (int i = -radius; i <= radius; ++i) {
+            int x = (chunkX + i) % maxX;
+            x = x < 0 ? maxX + x : x;
+            for (int y = minY; y <= maxY; ++y) {
+                Object[] entities = cells.get(x * WorldConstants.WORLD_CHUNKS_TALL + y).entities;
+                for (int k=0; k < entities.length; ++k) {
+                    visitor.visit((T) entities[k]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the entities in a chunk, for callers that can't afford to create
+     * a visitor.  The array is never modified once it has been published, so
+     * it can be read without locking, but it must not be changed.
+     * @param chunkX The x coordinate of the chunk.
+     * @param chunkY The y coordinate of the chunk.
+     * @return entities, which is empty if the chunk is not in the world.
+     */
+    Object[] getEntities(int chunkX, int chunkY) {
+        int index = getCellIndex(((long) chunkY << 32) | (chunkX & 0xFFFFFFFFL));
+        return index == -1 ? Cell.EMPTY.entities : cells.get(index).entities;
+    }
+
+    /**
+     * Returns the number of entities in the chunks within <code>radius</code>
+     * chunks of (chunkX, chunkY).
+     * @param chunkX The x coordinate of the center chunk.
+     * @param chunkY The y coordinate of the center chunk.
+     * @param radius The number of chunks to count in each direction.
+     * @return count
+     */
+    public int countNear(int chunkX, int chunkY, int radius) {
+        int result = 0;
+        int maxX = WorldConstants.WORLD_CHUNKS_WIDE;
+        int minY = Math.max(chunkY - radius, 0);
+        int maxY = Math.min(chunkY + radius, WorldConstants.WORLD_CHUNKS_TALL - 1);
+        for (int i = -radius; i <= radius; ++i) {
+            int x = (chunkX + i) % maxX;
+            x = x < 0 ? maxX + x : x;
+            for (int y = minY; y <= maxY; ++y) {
+                result += cells.get(x * WorldConstants.WORLD_CHUNKS_TALL + y).ids.length;
+            }
+        }
+        return result;
+    }
+}
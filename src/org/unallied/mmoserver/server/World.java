@@ -1,30 +1,34 @@
 package org.unallied.mmoserver.server;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-import libnoiseforjava.exception.ExceptionInvalidParam;
-import libnoiseforjava.module.Perlin;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import org.unallied.mmocraft.BlockType;
 import org.unallied.mmocraft.BoundLocation;
 import org.unallied.mmocraft.Location;
-import org.unallied.mmocraft.RawPoint;
 import org.unallied.mmocraft.blocks.Block;
 import org.unallied.mmocraft.constants.WorldConstants;
-import org.unallied.mmocraft.sessions.TerrainSession;
+import org.unallied.mmocraft.net.Packet;
+import org.unallied.mmoserver.constants.ServerConstants;
 import org.unallied.mmoserver.monsters.ServerMonster;
 import org.unallied.mmoserver.monsters.ServerMonsterData;
+import org.unallied.mmoserver.monsters.ServerMonsterManager;
+import org.unallied.mmoserver.monsters.SpawnTable;
 import org.unallied.mmoserver.net.PacketCreator;
-import org.unallied.mmoserver.server.regions.DesertRegion;
-import org.unallied.mmoserver.server.regions.HillsRegion;
-import org.unallied.mmoserver.server.regions.PlainsRegion;
 import org.unallied.mmoserver.server.regions.Region;
-import org.unallied.mmoserver.server.regions.ShatteredRegion;
+import org.unallied.mmoserver.server.storage.BlockJournal;
+import org.unallied.mmoserver.server.storage.WorldStore;
 
 /**
  * Contains methods needed to access any chunk in the world.
@@ -34,27 +38,11 @@ import org.unallied.mmoserver.server.regions.ShatteredRegion;
  */
 public class World {
 
-    private final ReentrantReadWriteLock locks = new ReentrantReadWriteLock();
-    private final Lock readLock = locks.readLock();
-    private final Lock writeLock = locks.writeLock();
-    
-    private static final double HEAT_FREQUENCY = 1.80;
-    private static final double HEAT_LACUNARITY = 0.30;
-    private static final double HEAT_PERSISTENCE = 0.95;
-    private static final int HEAT_OCTAVE_COUNT = 6;
-    
-    private static final double HUMIDITY_FREQUENCY = 1.70;
-    private static final double HUMIDITY_LACUNARITY = 0.30;
-    private static final double HUMIDITY_PERSISTENCE = 0.95;
-    private static final int HUMIDITY_OCTAVE_COUNT = 6;
-    
     /**
-     *  All of the blocks in the world.
+     *  All of the chunks in the world.  Chunks hold the world's blocks and
+     *  are also used in synchronization (e.g. when changing a block).
      */
-    private byte[][] blocks = new byte[(int)WorldConstants.WORLD_WIDTH][(int)WorldConstants.WORLD_HEIGHT];
-
-    /** Chunk objects to be used in synchronization (e.g. when changing a block). */
-    private Object[][] chunks;
+    private ServerChunk[][] chunks;
     
     /**
      *  We will use regions to modify Perlin noise variables for world generation.
@@ -63,27 +51,97 @@ public class World {
     
     private BlockDamage blockDamage = new BlockDamage();
     
+    /** Tells players about the blocks that changed at the end of each tick. */
+    private final BlockChangeBroadcaster blockChanges = new BlockChangeBroadcaster();
+    
+    /** Generates the world.  Kept for chunks that have never been saved. */
+    private WorldGenerator generator;
+    
+    /** Stores the world's chunks on disk. */
+    private WorldStore store;
+    
+    /** Journals every block change made since the last checkpoint. */
+    private BlockJournal journal;
+    
+    /** The number of times that the world has been updated. */
+    private volatile long tick = 0;
+    
+    /** The monster difficulty added by each x block coordinate. */
+    private static final int[] DIFFICULTY_X = new int[WorldConstants.WORLD_WIDTH];
+    
+    /** The monster difficulty added by each y chunk coordinate. */
+    private static final int[] DIFFICULTY_Y = new int[WorldConstants.WORLD_CHUNKS_TALL];
+    
+    static {
+        for (int i=0; i < DIFFICULTY_X.length; ++i) {
+            DIFFICULTY_X[i] = computeDifficultyX(i);
+        }
+        for (int i=0; i < DIFFICULTY_Y.length; ++i) {
+            DIFFICULTY_Y[i] = computeDifficultyY(i);
+        }
+    }
+    
+    /** The epochs of all snapshots of the world.  See {@link #snapshot()}. */
+    private final SnapshotEpochs epochs = new SnapshotEpochs();
+    
+    /** Returned by {@link #findGround(int, int)} when a column has no ground. */
+    public static final int NO_GROUND = -1;
+    
+    /**
+     * The y coordinate of the highest ground block in each column, or
+     * {@link #NO_GROUND} if it is not known yet.  A column's height is found
+     * the first time that it is needed and then kept up to date as blocks
+     * change.
+     */
+    private final AtomicIntegerArray heightmap = new AtomicIntegerArray(WorldConstants.WORLD_WIDTH);
+    
+    /** Keeps track of the loaded chunks so that cold chunks can be unloaded. */
+    private final ChunkResidency residency = new ChunkResidency();
+    
+    /** Loads chunks that players have asked for without making them wait. */
+    private final ExecutorService chunkLoader = Executors.newFixedThreadPool(
+            ServerConstants.CHUNK_LOADING_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Chunk Loader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    
+    /** 
+     * The ids of all chunks that have changed since they were last saved.
+     * Changes mark their chunk while holding the chunk's lock.
+     */
+    private final Set<Long> dirtyChunks = Collections.synchronizedSet(new HashSet<Long>());
+    
     /**
-     * A map of all players by chunk id.  When a player moves from one chunk to another,
+     * All players by chunk id.  When a player moves from one chunk to another,
      * they need to be removed from their old chunk and placed in their new chunk.
      * TODO: Combine this with the PlayerPool somehow.
      */
-    private HashMap<Long, HashMap<Integer, ServerPlayer>> players = new HashMap<Long, HashMap<Integer, ServerPlayer>>();
+    private final SpatialIndex<ServerPlayer> players = new SpatialIndex<ServerPlayer>();
     
     /**
-     * A map of all monsters by chunk id.  When a monster moves from one chunk to another,
+     * All monsters by chunk id.  When a monster moves from one chunk to another,
      * they need to be removed from their old chunk and placed in their new chunk.
      * TODO: Combine this with the MonsterPool somehow.
      */
-    private HashMap<Long, HashMap<Integer, ServerMonster>> monsters = new HashMap<Long, HashMap<Integer, ServerMonster>>();
+    private final SpatialIndex<ServerMonster> monsters = new SpatialIndex<ServerMonster>();
+    
+    /** The players who can see each chunk.  Used for broadcasting. */
+    private final AreaOfInterest interest = new AreaOfInterest(players, monsters);
     
     private World() {
-        chunks = new Object[(int)WorldConstants.WORLD_CHUNKS_WIDE][(int)WorldConstants.WORLD_CHUNKS_TALL];
+        chunks = new ServerChunk[(int)WorldConstants.WORLD_CHUNKS_WIDE][(int)WorldConstants.WORLD_CHUNKS_TALL];
         for (int i=0; i < chunks.length; ++i) {
             for (int j=0; j < chunks[i].length; ++j) {
-                chunks[i][j] = new Object();
+                chunks[i][j] = new ServerChunk(this, i, j, epochs);
             }
         }
+        for (int i=0; i < WorldConstants.WORLD_WIDTH; ++i) {
+            heightmap.set(i, NO_GROUND);
+        }
     }
     
     private static class WorldHolder {
@@ -91,233 +149,294 @@ public class World {
     }
     
     /**
-     * Clears the block at (<code>x</code>,<code>y</code>), replacing it with
-     * air.
-     * @param x The x block coordinate of the world
-     * @param y The y block coordinate of the world
+     * Generates every chunk in the world that has not been loaded yet.
+     * Normally chunks are only loaded or generated the first time that they
+     * are needed, so this is only useful for pre-generating an entire world.
      */
-    private void clearBlock(int x, int y) {
-        if (x >= 0 && y >= 0 && x < WorldConstants.WORLD_WIDTH && y < WorldConstants.WORLD_HEIGHT) {
-            blocks[x][y] = BlockType.AIR.getValue();
-        }
+    public void generateWorld() {
+        generator.generate(this, Runtime.getRuntime().availableProcessors());
     }
     
     /**
-     * Creates a circle of air around this location with the given radius.
-     * @param x0 The center x block coordinate of the world
-     * @param y0 The center y block coordinate of the world
-     * @param radius The circle radius in blocks to draw around (x,y)
+     * Loads the world from disk.  Only the regions are built up front from
+     * the world's seed.  Chunks are read from disk the first time that they
+     * are needed, and chunks which have never been saved are generated.  If
+     * the world has never been saved, then a new seed is chosen.
      */
-    private void rasterCircle(int x0, int y0, int radius) {
-        int f = 1 - radius;
-        int ddF_x = 1;
-        int ddF_y = -2 * radius;
-        int x = 0;
-        int y = radius;
-        
-        clearBlock(x0, y0);
-        for (int i=1; i <= radius; ++i) {
-            clearBlock(x0, y0 + i);
-            clearBlock(x0, y0 - i);
-            clearBlock(x0 + i, y0);
-            clearBlock(x0 - i, y0);
+    public void load() {
+        store = new WorldStore(ServerConstants.WORLD_DIRECTORY);
+        Long seed = store.getSeed();
+        if (seed == null) {
+            seed = new Random().nextLong();
+            System.out.println("No saved world found.  Creating world with seed " + seed + ".");
+            store.setSeed(seed);
         }
+        generator = new WorldGenerator(seed);
+        regions = generator.getRegions();
+        createSpawnTables();
         
-        while (x < y) {
-            if (f >= 0) {
-                --y;
-                ddF_y += 2;
-                f += ddF_y;
-            }
-            ++x;
-            ddF_x += 2;
-            f += ddF_x;
-            for (int i=0; i <= x; ++i) {
-                for (int j=0; j <= y; ++j) {
-                    clearBlock(x0 + i, y0 + j);
-                    clearBlock(x0 - i, y0 + j);
-                    clearBlock(x0 + i, y0 - j);
-                    clearBlock(x0 - i, y0 - j);
-                    clearBlock(x0 + j, y0 + i);
-                    clearBlock(x0 - j, y0 + i);
-                    clearBlock(x0 + j, y0 - i);
-                    clearBlock(x0 - j, y0 - i);
+        // Apply all changes that were made after the last checkpoint
+        journal = new BlockJournal(ServerConstants.WORLD_DIRECTORY);
+        long replayed = journal.replay(new BlockJournal.Replayer() {
+            @Override
+            public void replay(int x, int y, byte oldValue, byte newValue, long tick) {
+                if (x < 0 || y < 0 || x >= WorldConstants.WORLD_WIDTH
+                        || y >= WorldConstants.WORLD_HEIGHT) { // Guard
+                    return;
                 }
+                ServerChunk chunk = loadChunk(x / WorldConstants.WORLD_CHUNK_WIDTH, y / WorldConstants.WORLD_CHUNK_HEIGHT);
+                chunk.setBlock(ServerChunk.getIndex(x, y), newValue);
+                markDirty(x, y);
             }
+        });
+        journal.start();
+        if (replayed > 0) {
+            System.out.println("Replayed " + replayed + " block changes from the journal.");
+            save();
         }
-    }
         
+        if (ServerConstants.PREGENERATE_WORLD) {
+            generateWorld();
+        }
+        System.out.println("Finished loading world.");
+    }
+    
     /**
-     * This should be called after the world is generated with Perlin noise.
-     * This function makes tunnels throughout the entire world, leading to a
-     * more interesting and diverse game world.
-     * @param wormCount  Number of worms to spawn uniformly across the world
-     * @param wormRadius  Average radius of the worms
-     * @param wormRadiusChangeRate Rate at which the worms change their radius.
-     * Higher values cause it to change more frequently.  Should be between
-     * 1 and 99.
-     * @param wormDirectionChangeRate  Average rate at which the worm changes
-     * its direction.  Higher values cause it to change more frequently.
-     * Should be between 1 and 99.
-     * @param wormLength  Average length of the worm.  Higher values cause the
-     * worm to be longer.  Should be between 1 and 99999.
-     */
-    private void worms(long wormCount, int wormRadius, int wormRadiusChangeRate, int wormDirectionChangeRate, long wormLength) {
-        Random random = new Random();
-        
-        // Create WORM_COUNT worms
-        for (long i=0; i < wormCount; ++i) {
-            // Each worm should start at a uniformly distributed random location (x,y)
-            long x = (long) (WorldConstants.WORLD_WIDTH * random.nextDouble());
-            long y = (long) (WorldConstants.WORLD_HEIGHT * random.nextDouble());
-            int directionX = random.nextInt(3) - 1;
-            int directionY = random.nextInt(3) - 1;
-            int radius = (int) (random.nextGaussian()*2+wormRadius);
-            radius = radius < 1 ? 1 : radius;
-            
-            // While this worm needs to keep going
-            do {
-                
-                // Perform midpoint circle algorithm to remove surroundings
-                rasterCircle((int)x, (int)y, radius);
-                
-                // See if radius changed
-                if (random.nextInt(100) < wormRadiusChangeRate) {
-                    // Get new radius
-                    radius += (int) (random.nextGaussian()*2+wormRadius) > radius ? 1 : -1;
-                    radius = radius < 1 ? 1 : radius;
-                }
-                
-                x += directionX;
-                y += directionY;
-                
-                // See if direction changed
-                if (random.nextInt(100) < wormDirectionChangeRate) {
-                    // Get new direction
-                    directionX = random.nextInt(3) - 1;
-                    directionY = random.nextInt(3) - 1;
+     * Saves all chunks which have changed since they were last saved, and then
+     * throws away the journaled changes that have been saved.  This performs
+     * disk I/O, so it should not be called from the update thread.
+     * @see WorldCheckpointer
+     */
+    public synchronized void save() {
+        if (store == null) {
+            return;
+        }
+        // Every change journaled before the rotation is already in memory, so
+        // it will be in the snapshot below.
+        long generation = journal == null ? 0 : journal.rotate();
+        List<Long> chunkIds;
+        synchronized (dirtyChunks) {
+            chunkIds = new ArrayList<Long>(dirtyChunks);
+            dirtyChunks.clear();
+        }
+        // Changes made after this will mark their chunk dirty again
+        WorldSnapshot snapshot = snapshot();
+        try {
+            byte[] chunk = new byte[ServerChunk.SIZE];
+            for (long chunkId : chunkIds) {
+                int x = (int) ((chunkId << 32) >> 32);
+                int y = (int) (chunkId >> 32);
+                if (snapshot.copyChunk(x, y, chunk)) {
+                    store.writeChunk(x, y, chunk);
                 }
             }
-            while (random.nextInt(100000) < wormLength);
+        } finally {
+            snapshot.release();
+        }
+        store.flush();
+        if (journal != null) {
+            journal.deleteBefore(generation);
         }
     }
     
     /**
-     * Creates a region at (x,y) where each unit is a region.
-     * Only the x coordinate is used to determine heat and rainfall.
-     * This is because the world is 2D, so the heatmap and rainfall map
-     * are just a horizontal line.
-     * @param heat A Perlin noise generator for how hot a region is.
-     * @param humidity A Perlin noise generator for the amount of rainfall
-     * received by a region.
-     * @param x The x coordinate of the region.  Starting at 0, each unit is
-     * 1 region.
-     * @param y The y coordinate of the region.  Starting at 0, each unit is
-     * 1 region.
-     * @return region at position (x, y).  Will return a region even if it is
-     * outside of the world's region boundaries.
+     * Saves all changed chunks and closes the world's files.  This should only
+     * be called when the server is shutting down.
      */
-    public Region generateRegion(Perlin heat, Perlin humidity, int x, int y) {
-        
-        // Get heat and rainfall in %'s from roughly 0 ~ 100%
-        double iheat    = (heat.getValue(x, 0.5)+1) * 50;
-        double rainfall = (humidity.getValue(x, 0.5)+1) * 50;
-        
-        //http://www.minecraftwiki.net/wiki/File:BiomesGraph.png <-- use this to help
-        System.out.print("Heat: " + iheat + "  | Rain: " + rainfall + " | ");
-
-        if (rainfall < 25) {
-            if (iheat < 25) {
-                return new PlainsRegion(x, y);
+    public void close() {
+        if (store != null) {
+            save();
+            if (journal != null) {
+                journal.close();
+            }
+            store.close();
+        }
+    }
+    
+    /**
+     * Makes sure that the chunk at (x,y) is in memory.  Chunks are read from
+     * disk the first time that they are needed, and again if they have been
+     * unloaded.  If a chunk has never been written, it is generated instead.
+     * If another thread is already loading the chunk, this waits for it to
+     * finish.
+     * @param x The chunk's x coordinate.
+     * @param y The chunk's y coordinate.
+     * @return the loaded chunk
+     */
+    ServerChunk loadChunk(int x, int y) {
+        ServerChunk chunk = chunks[x][y];
+        chunk.reference();
+        while (!chunk.isLoaded()) {
+            if (chunk.startLoading()) {
+                boolean success = false;
+                try {
+                    byte[] blocks = new byte[ServerChunk.SIZE];
+                    if (store == null || !store.readChunk(x, y, blocks)) {
+                        // Never been written, so generate it
+                        generator.generateChunk(x, y, blocks);
+                        dirtyChunks.add(chunk.getId());
+                    }
+                    chunk.setBlocks(blocks);
+                    success = true;
+                } finally {
+                    if (success) {
+                        chunk.finishLoading();
+                        residency.add(chunk);
+                    } else {
+                        chunk.abortLoading();
+                    }
+                }
             } else {
-                return new DesertRegion(x, y);
+                chunk.awaitLoading();
             }
-        } else if (rainfall < 50) {
-            return new HillsRegion(x, y);
-        } else if (rainfall < 75) {
-            return new HillsRegion(x, y);
-        } else {
-            return new ShatteredRegion(x, y);
         }
+        return chunk;
     }
     
     /**
-     * Generate the entire world.  This should only be called one time,
-     * and only when initializing the world for the first time.
+     * Makes sure that the chunk at (x,y) is in memory, loading or generating
+     * it if needed.  This is used to prepare chunks before players need them.
+     * @param x The chunk's x coordinate.
+     * @param y The chunk's y coordinate.
+     * @return true if the chunk had to be loaded or generated.
      */
-    public void generateWorld() {
-        Random random = new Random();
-        Perlin heat     = new Perlin(random.nextInt());
-        heat.setFrequency(HEAT_FREQUENCY);
-        heat.setLacunarity(HEAT_LACUNARITY);
-        heat.setPersistence(HEAT_PERSISTENCE);
-        try {
-            heat.setOctaveCount(HEAT_OCTAVE_COUNT);
-        } catch (ExceptionInvalidParam e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+    public boolean prepareChunk(int x, int y) {
+        if (x < 0 || y < 0 || x >= WorldConstants.WORLD_CHUNKS_WIDE
+                || y >= WorldConstants.WORLD_CHUNKS_TALL) { // Guard
+            return false;
         }
-        
-        Perlin humidity = new Perlin(random.nextInt());
-        humidity.setFrequency(HUMIDITY_FREQUENCY);
-        humidity.setLacunarity(HUMIDITY_LACUNARITY);
-        humidity.setPersistence(HUMIDITY_PERSISTENCE);
-        try {
-            humidity.setOctaveCount(HUMIDITY_OCTAVE_COUNT);
-        } catch (ExceptionInvalidParam e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        if (chunks[x][y].getState() != ServerChunk.ABSENT) {
+            return false;
         }
+        loadChunk(x, y);
+        return true;
+    }
+    
+    /**
+     * Runs <code>task</code> once the chunk is in memory.  If the chunk has
+     * to be read from disk or generated, this is done on a chunk loading
+     * thread so that the caller does not have to wait for it.  Nothing is
+     * run if the chunk is not in the world.
+     * chunkId is defined as (y << 32) | x
+     * @param chunkId The id of the chunk.
+     * @param task The task to run once the chunk is loaded.
+     */
+    public void whenChunkLoaded(long chunkId, final Runnable task) {
+        final int x = (int) ((chunkId << 32) >> 32);
+        final int y = (int) (chunkId >> 32);
         
-        Perlin perlin   = new Perlin(random.nextInt());
-        
-        // Create the regions
-        for (int i=0; i < WorldConstants.WORLD_REGIONS_WIDE; ++i) {
-            for (int j=0; j < WorldConstants.WORLD_REGIONS_TALL; ++j) {
-                regions[i][j] = generateRegion(heat, humidity, i, j);
-                System.out.print(regions[i][j].toString().split("@")[0] + "\n");
+        if (x < 0 || y < 0 || x >= WorldConstants.WORLD_CHUNKS_WIDE
+                || y >= WorldConstants.WORLD_CHUNKS_TALL) { // Guard
+            return;
+        }
+        if (chunks[x][y].isLoaded()) {
+            task.run();
+            return;
+        }
+        chunkLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loadChunk(x, y);
+                    task.run();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
             }
+        });
+    }
+    
+    /**
+     * Unloads a chunk if nobody is likely to need it soon.  Chunks near a
+     * player and chunks which have not been saved are kept.  This holds the
+     * world's lock so that chunks are not unloaded while they are being
+     * saved, since {@link #save()} clears their dirty mark first.  This
+     * should only be called by {@link ChunkResidency}.
+     * @param chunk The chunk to unload.
+     * @return true if the chunk was unloaded.
+     */
+    synchronized boolean unloadChunk(ServerChunk chunk) {
+        if (players.countNear(chunk.getX(), chunk.getY(), ServerConstants.CHUNK_PREGENERATION_RADIUS) > 0) {
+            return false;
         }
-        
-        // Set surrounding region information
-        for (int i=0; i < WorldConstants.WORLD_REGIONS_WIDE; ++i) {
-            for (int j=0; j < WorldConstants.WORLD_REGIONS_TALL; ++j) {
-                int top   = (j-1) % (int)WorldConstants.WORLD_REGIONS_TALL;
-                int bot   = (j+1) % (int)WorldConstants.WORLD_REGIONS_TALL;
-                int left  = (i-1) % (int)WorldConstants.WORLD_REGIONS_WIDE;
-                int right = (i+1) % (int)WorldConstants.WORLD_REGIONS_WIDE;
-                top   = top   < 0 ? (int)WorldConstants.WORLD_REGIONS_TALL+top   : top;
-                bot   = bot   < 0 ? (int)WorldConstants.WORLD_REGIONS_TALL+bot   : bot;
-                left  = left  < 0 ? (int)WorldConstants.WORLD_REGIONS_WIDE+left  : left;
-                right = right < 0 ? (int)WorldConstants.WORLD_REGIONS_WIDE+right : right;
-                regions[i][j].setRegions(regions[i][top], regions[right][j],
-                        regions[i][bot], regions[left][j]);
+        synchronized (chunk) {
+            if (dirtyChunks.contains(chunk.getId())) {
+                return false;
             }
+            return chunk.unload();
         }
-        
-        // Create the blocks
-        for (int i=0; i < WorldConstants.WORLD_WIDTH; ++i) {
-            for (int j=0; j < WorldConstants.WORLD_HEIGHT; ++j) {
-                Region region = regions[i/(int)WorldConstants.WORLD_REGION_WIDTH][j/(int)WorldConstants.WORLD_REGION_HEIGHT];
-                double val = region.getValue(perlin, i, j);
-                // Universal weighting based on height
-                val += WorldConstants.WORLD_WEIGHT * j / WorldConstants.WORLD_HEIGHT;
-                blocks[i][j] = region.getBlock(val);
+    }
+    
+    /**
+     * Unloads cold chunks until the loaded chunks fit within
+     * {@link ServerConstants#CHUNK_MEMORY_BUDGET}.
+     * @return the number of chunks that were unloaded.
+     * @see ChunkUnloader
+     */
+    public int trimChunks() {
+        return residency.trim(this, ServerConstants.CHUNK_MEMORY_BUDGET);
+    }
+    
+    /**
+     * Changes a block in a loaded chunk.  The change is journaled, and the
+     * chunk is marked as changed so that it is saved by the next checkpoint.
+     * @param chunk The chunk containing the block.
+     * @param x The x block coordinate of the world
+     * @param y The y block coordinate of the world
+     * @param value The value of the block's new type.
+     */
+    private void changeBlock(ServerChunk chunk, int x, int y, byte value) {
+        int index = ServerChunk.getIndex(x, y);
+        byte oldValue;
+        synchronized (chunk) {
+            oldValue = chunk.getBlock(index);
+            chunk.setBlock(index, value);
+            // Marked while locked so that the chunk can't be unloaded in between
+            markDirty(x, y);
+            // Journaled while locked so that changes to a block are replayed in order
+            if (journal != null) {
+                journal.append(x, y, oldValue, value, tick);
+            }
+        }
+        updateHeight(x, y);
+    }
+    
+    /**
+     * Keeps the heightmap up to date after block (x,y) has changed.  A new
+     * collidable block above the highest ground becomes the highest ground.
+     * If the highest ground was removed, the column is searched for the
+     * next ground below it.
+     * @param x The x block coordinate of the world
+     * @param y The y block coordinate of the world
+     */
+    private void updateHeight(int x, int y) {
+        while (true) {
+            int height = heightmap.get(x);
+            int newHeight;
+            if (height == NO_GROUND) {
+                return; // Not known yet, so it will be found when needed
+            } else if (y < height && isCollidable(x, y)) {
+                newHeight = y;
+            } else if (y == height && !isCollidable(x, y)) {
+                newHeight = y + 1 < WorldConstants.WORLD_HEIGHT ? findGroundBelow(x, y + 1) : NO_GROUND;
+            } else {
+                return;
             }
-            if ((i+1) % 1000 == 0) {
-                System.out.println(i+1 + " / " + WorldConstants.WORLD_WIDTH + " block columns loaded.");
+            if (heightmap.compareAndSet(x, height, newHeight)) {
+                return;
             }
         }
-        System.out.println("Finished loading all block columns.");
-        
-        // make the land more interesting by carving worm-like tunnels
-        
-        // make "dungeons" (really long tunnels)
-        worms(WorldConstants.WORM_COUNT, 3, WorldConstants.WORM_RADIUS_CHANGE_RATE,
-                WorldConstants.WORM_DIRECTION_CHANGE_RATE, WorldConstants.WORM_LENGTH);
-        // Punch out little holes in the world
-        worms(WorldConstants.WORM_COUNT*1667, 2, 90,
-                WorldConstants.WORM_DIRECTION_CHANGE_RATE*2, 93000);
+    }
+    
+    /**
+     * Marks the chunk containing block (x,y) as changed so that it is saved
+     * by the next call to {@link #save()}.
+     * @param x The x block coordinate of the world
+     * @param y The y block coordinate of the world
+     */
+    private void markDirty(int x, int y) {
+        dirtyChunks.add(((long) (y / WorldConstants.WORLD_CHUNK_HEIGHT) << 32)
+                | (x / WorldConstants.WORLD_CHUNK_WIDTH));
     }
     
     /**
@@ -382,28 +501,62 @@ public class World {
      * @return blocks of a chunk
      */
     public byte[] getChunk(int x, int y) {
+        if (x < 0 || y < 0 || x >= WorldConstants.WORLD_CHUNKS_WIDE
+                || y >= WorldConstants.WORLD_CHUNKS_TALL) { // Guard
+            return null;
+        }
+        byte[] result = new byte[ServerChunk.SIZE];
+        loadChunk(x, y).copyTo(result);
+        return result;
+    }
+    
+    /**
+     * Copies the blocks that make up a given chunk without locking.  The
+     * copy never contains half of a change, and is exactly the version of
+     * the chunk that is returned.
+     * chunkId is defined as (y << 32) | x
+     * @param chunkId The id of the chunk.
+     * @param dst An array of at least {@link ServerChunk#SIZE} bytes.
+     * @return the version of the chunk that was copied, or -1 if the chunk
+     *         does not exist.
+     */
+    public int copyChunk(long chunkId, byte[] dst) {
+        int x = (int) ((chunkId << 32) >> 32);
+        int y = (int) (chunkId >> 32);
         
-        byte[] result = new byte[WorldConstants.WORLD_CHUNK_WIDTH
-                                 * WorldConstants.WORLD_CHUNK_HEIGHT];
-        
-        // Convert to block coordinates
-        x *= WorldConstants.WORLD_CHUNK_WIDTH;
-        y *= WorldConstants.WORLD_CHUNK_HEIGHT;
+        if (x < 0 || y < 0 || x >= WorldConstants.WORLD_CHUNKS_WIDE
+                || y >= WorldConstants.WORLD_CHUNKS_TALL) { // Guard
+            return -1;
+        }
+        return loadChunk(x, y).copyTo(dst);
+    }
+    
+    /**
+     * Takes a snapshot of every chunk in the world.  This takes constant time,
+     * and changes to the world are never blocked by the snapshot.  The
+     * snapshot must be released when it is no longer needed.
+     * @return snapshot
+     */
+    public WorldSnapshot snapshot() {
+        return new WorldSnapshot(this, epochs);
+    }
+    
+    /**
+     * Returns the version of a chunk.  The version changes every time one of
+     * the chunk's blocks changes.
+     * chunkId is defined as (y << 32) | x
+     * @param chunkId The id of the chunk.
+     * @return version, or -1 if the chunk does not exist.
+     */
+    public int getChunkVersion(long chunkId) {
+        int x = (int) ((chunkId << 32) >> 32);
+        int y = (int) (chunkId >> 32);
         
-        try {
-            // Write the chunk to our result array
-            for( int i=x; i < x + WorldConstants.WORLD_CHUNK_WIDTH; ++i) {
-                for (int j=y; j < y + WorldConstants.WORLD_CHUNK_HEIGHT; ++j) {
-                    result[(i-x) * WorldConstants.WORLD_CHUNK_HEIGHT + (j-y)] =
-                            blocks[i][j];
-                }
-            }
-            
-            return result;
-        } catch (NullPointerException e) {
-            // This shouldn't happen, because blocks should be assigned, but just incase
-            return null;
+        if (x < 0 || y < 0 || x >= WorldConstants.WORLD_CHUNKS_WIDE
+                || y >= WorldConstants.WORLD_CHUNKS_TALL) { // Guard
+            return -1;
         }
+        return chunks[x][y].getVersion();
     }
     
     /**
@@ -446,8 +599,9 @@ public class World {
         x = x >= 0 ? x % WorldConstants.WORLD_WIDTH : WorldConstants.WORLD_WIDTH + x;
         y = y >= 0 ? y : 0;
         y = y >= WorldConstants.WORLD_HEIGHT ? WorldConstants.WORLD_HEIGHT - 1 : y;
+        ServerChunk chunk = loadChunk(x / WorldConstants.WORLD_CHUNK_WIDTH, y / WorldConstants.WORLD_CHUNK_HEIGHT);
         try {
-            return BlockType.fromValue(blocks[x][y]).getBlock();
+            return BlockType.fromValue(chunk.getBlock(ServerChunk.getIndex(x, y))).getBlock();
         } catch (NullPointerException e) {
             return null;
         }
@@ -467,13 +621,14 @@ public class World {
         }
         int x = location.getX();
         int y = location.getY();
-        blockDamage.clearDamage(new RawPoint(x, y));
-        if (blocks[x][y] != type.getValue()) {
-            blocks[x][y] = type.getValue();
+        blockDamage.clearDamage(x, y);
+        ServerChunk chunk = loadChunk(x / WorldConstants.WORLD_CHUNK_WIDTH, y / WorldConstants.WORLD_CHUNK_HEIGHT);
+        int index = ServerChunk.getIndex(x, y);
+        if (chunk.getBlock(index) != type.getValue()) {
+            changeBlock(chunk, x, y, type.getValue());
             
             // Tell all nearby players that the block has changed.
-            Server.getInstance().localBroadcast(location,
-                    PacketCreator.getBlockChanged(x, y, type));
+            blockChanges.add(x, y, type.getValue());
         }
     }
     
@@ -492,14 +647,12 @@ public class World {
                 : WorldConstants.WORLD_WIDTH + x;
         y = y >= 0 ? y: 0;
         y = y >= WorldConstants.WORLD_HEIGHT ? WorldConstants.WORLD_HEIGHT - 1 : y;
-    	RawPoint point = new RawPoint(x, y);
-    	
-    	if (blockDamage.doDamage(point, playerId, damage, getBlock(x, y))) {
+    	if (blockDamage.doDamage(x, y, playerId, damage, getBlock(x, y))) {
     	    // Block damage says the block has broken, so break it.
-    	    blocks[(int)x][(int)y] = BlockType.AIR.getValue();
+    	    ServerChunk chunk = chunks[x / WorldConstants.WORLD_CHUNK_WIDTH][y / WorldConstants.WORLD_CHUNK_HEIGHT];
+    	    changeBlock(chunk, x, y, BlockType.AIR.getValue());
             // Tell all nearby players that the block has broken
-            Server.getInstance().localBroadcast(new BoundLocation(x, y), 
-                    PacketCreator.getBlockChanged(x, y, getBlock(x, y).getType()));
+            blockChanges.add(x, y, BlockType.AIR.getValue());
     	}
     }
 
@@ -510,47 +663,13 @@ public class World {
      * @return players near <code>location</code>
      */
     public List<ServerPlayer> getNearbyPlayers(BoundLocation location) {
-        List<ServerPlayer> result = new ArrayList<ServerPlayer>();
-        
-        int radius = WorldConstants.WORLD_DRAW_DISTANCE;
-        int length = radius * 2 + 1;
-        
-        // Get all chunks around this location
-        // NOTE: This breaks down if the world is abnormally small
-        int x = location.getX();
-        int y = location.getY();
-        
-        int maxX = WorldConstants.WORLD_CHUNKS_WIDE;
-        int maxY = WorldConstants.WORLD_CHUNKS_TALL;
-        
-        x /= WorldConstants.WORLD_CHUNK_WIDTH;
-        y /= WorldConstants.WORLD_CHUNK_HEIGHT;
-        
-        readLock.lock();
-        try {
-            for (int i = 0; i < length; ++i) { // rows
-                for (int j = 0; j < length; ++j) { // columns
-                    // (y << 32) | x
-                    int chunkX = (x + i - radius) % maxX;
-                    int chunkY = y + j - radius;
-                    
-                    // Make sure we don't get negative coordinates
-                    chunkX = chunkX < 0 ? maxX + chunkX : chunkX;
-                    chunkY = chunkY < 0 ? 0 : 
-                                     chunkY > maxY ? maxY :
-                                             chunkY;
-                    
-                    long chunkId = ((long) (chunkY) << 32) | chunkX;
-                    
-                    if (players.containsKey(chunkId)) {
-                        result.addAll(players.get(chunkId).values());
-                    }
-                }
+        final List<ServerPlayer> result = new ArrayList<ServerPlayer>();
+        forEachNearbyPlayer(location, WorldConstants.WORLD_DRAW_DISTANCE, new EntityVisitor<ServerPlayer>() {
+            @Override
+            public void visit(ServerPlayer player) {
+                result.add(player);
             }
-        } finally {
-            readLock.unlock();
-        }
-        
+        });
         return result;
     }
     
@@ -561,50 +680,93 @@ public class World {
      * @return monsters near <code>location</code>
      */
     public List<ServerMonster> getNearbyMonsters(BoundLocation location) {
-        List<ServerMonster> result = new ArrayList<ServerMonster>();
-        
-        int radius = WorldConstants.WORLD_DRAW_DISTANCE;
-        int length = radius * 2 + 1;
-        
-        // Get all chunks around this location
-        // NOTE: This breaks down if the world is abnormally small
-        int x = location.getX();
-        int y = location.getY();
-        
-        int maxX = WorldConstants.WORLD_CHUNKS_WIDE;
-        int maxY = WorldConstants.WORLD_CHUNKS_TALL;
-        
-        x /= WorldConstants.WORLD_CHUNK_WIDTH;
-        y /= WorldConstants.WORLD_CHUNK_HEIGHT;
-        
-        readLock.lock();
-        try {
-            for (int i=0; i < length; ++i) { // rows
-                for (int j=0; j < length; ++j) { // columns
-                    // (y << 32) | x
-                    int chunkX = (x+i-radius) % maxX;
-                    int chunkY = y+j-radius;
-                    
-                    // Make sure we don't get negative coordinates
-                    chunkX = chunkX < 0 ? maxX+chunkX : chunkX;
-                    chunkY = chunkY < 0 ? 0 : 
-                                     chunkY > maxY ? maxY :
-                                             chunkY;
-                    
-                    long chunkId = ((long) (chunkY) << 32) | chunkX;
-                    
-                    if (monsters.containsKey(chunkId)) {
-                        result.addAll(monsters.get(chunkId).values());
-                    }
-                }
+        final List<ServerMonster> result = new ArrayList<ServerMonster>();
+        forEachNearbyMonster(location, WorldConstants.WORLD_DRAW_DISTANCE, new EntityVisitor<ServerMonster>() {
+            @Override
+            public void visit(ServerMonster monster) {
+                result.add(monster);
             }
-        } finally {
-            readLock.unlock();
-        }
-        
+        });
         return result;
     }
     
+    /**
+     * Visits every player in the chunks within <code>radius</code> chunks of
+     * this location.  Unlike {@link #getNearbyPlayers(BoundLocation)}, this
+     * does not build a list of the players.
+     * NOTE: This breaks down if the world is abnormally small
+     * @param location The location to visit the surrounding players of
+     * @param radius The number of chunks around <code>location</code> to visit.
+     *               Usually <code>WorldConstants.WORLD_DRAW_DISTANCE</code>.
+     * @param visitor Called for every nearby player
+     */
+    public void forEachNearbyPlayer(Location location, int radius, EntityVisitor<? super ServerPlayer> visitor) {
+        players.forEachNear(location.getX() / WorldConstants.WORLD_CHUNK_WIDTH,
+                location.getY() / WorldConstants.WORLD_CHUNK_HEIGHT, radius, visitor);
+    }
+    
+    /**
+     * Visits every monster in the chunks within <code>radius</code> chunks of
+     * this location.  Unlike {@link #getNearbyMonsters(BoundLocation)}, this
+     * does not build a list of the monsters.
+     * NOTE: This breaks down if the world is abnormally small
+     * @param location The location to visit the surrounding monsters of
+     * @param radius The number of chunks around <code>location</code> to visit.
+     *               Usually <code>WorldConstants.WORLD_DRAW_DISTANCE</code>.
+     * @param visitor Called for every nearby monster
+     */
+    public void forEachNearbyMonster(Location location, int radius, EntityVisitor<? super ServerMonster> visitor) {
+        monsters.forEachNear(location.getX() / WorldConstants.WORLD_CHUNK_WIDTH,
+                location.getY() / WorldConstants.WORLD_CHUNK_HEIGHT, radius, visitor);
+    }
+    
+    /**
+     * Visits every player who can see this location.  This is the same as
+     * visiting the players within <code>WorldConstants.WORLD_DRAW_DISTANCE</code>
+     * chunks, but the players are kept up to date as they move instead of
+     * being searched for, so this should be used for broadcasting.
+     * @param location The location being broadcast to
+     * @param visitor Called for every player who can see <code>location</code>
+     */
+    public void forEachSubscriber(Location location, EntityVisitor<? super ServerPlayer> visitor) {
+        interest.forEachSubscriber(location, visitor);
+    }
+    
+    /**
+     * Sends a packet to every player who can see the chunk containing this
+     * location, without creating a visitor.
+     * @param location The location being broadcast to
+     * @param packet The packet to send
+     * @param except A player who should not be sent the packet, or null
+     */
+    public void announceToSubscribers(Location location, Packet packet, ServerPlayer except) {
+        interest.announce(location, packet, except);
+    }
+    
+    /**
+     * Returns the number of players in the chunks within <code>radius</code>
+     * chunks of this location.
+     * @param location The location to count the surrounding players of
+     * @param radius The number of chunks around <code>location</code> to count.
+     * @return nearbyPlayers
+     */
+    public int countNearbyPlayers(Location location, int radius) {
+        return players.countNear(location.getX() / WorldConstants.WORLD_CHUNK_WIDTH,
+                location.getY() / WorldConstants.WORLD_CHUNK_HEIGHT, radius);
+    }
+    
+    /**
+     * Returns the number of monsters in the chunks within <code>radius</code>
+     * chunks of this location.
+     * @param location The location to count the surrounding monsters of
+     * @param radius The number of chunks around <code>location</code> to count.
+     * @return nearbyMonsters
+     */
+    public int countNearbyMonsters(Location location, int radius) {
+        return monsters.countNear(location.getX() / WorldConstants.WORLD_CHUNK_WIDTH,
+                location.getY() / WorldConstants.WORLD_CHUNK_HEIGHT, radius);
+    }
+    
     /**
      * Moves a player to a new chunk if necessary.  Does not actually update the player's
      * location.
@@ -614,29 +776,11 @@ public class World {
     public void movePlayer(ServerPlayer player, Location location) {
         if (player != null && location != null &&
                 getChunkId(player.getClientLocation()) != getChunkId(location)) {
-            writeLock.lock();
-            try {
-                // Remove player from old chunk
-                long chunkId = getChunkId(player.getClientLocation());
-                players.get(chunkId).remove(player.getId());
-                if (players.get(chunkId).size() == 0) {
-                    players.remove(chunkId);
-                }
-                
-                // Add player to new chunk
-                chunkId = getChunkId(location);
-                if (!players.containsKey(chunkId)) {
-                    players.put(chunkId, new HashMap<Integer,ServerPlayer>());
-                }
-                players.get(chunkId).put(player.getId(), player);
-                
-                // Notify player of nearby Living objects (players / monsters).
-                player.getClient().selectiveConvergecast();
-            } catch (NullPointerException e) {
-                e.printStackTrace();
-            } finally {
-                writeLock.unlock();
-            }
+            players.move(getChunkId(player.getClientLocation()), getChunkId(location),
+                    player.getId(), player);
+            
+            // Notify player of Living objects (players / monsters) entering or leaving their view.
+            interest.move(player, player.getClientLocation(), location);
         }
     }
     
@@ -649,28 +793,8 @@ public class World {
     public void moveMonster(ServerMonster monster, Location location) {
         if (monster != null && location != null &&
                 getChunkId(monster.getLocation()) != getChunkId(location)) {
-            writeLock.lock();
-            try {
-                // Remove monster from old chunk
-                long chunkId = getChunkId(monster.getLocation());
-                monsters.get(chunkId).remove(monster.getId());
-                if (monsters.get(chunkId).size() == 0) {
-                    monsters.remove(chunkId);
-                }
-                
-                // Add player to new chunk
-                chunkId = getChunkId(location);
-                if (!monsters.containsKey(chunkId)) {
-                    monsters.put(chunkId, new HashMap<Integer,ServerMonster>());
-                }
-                monsters.get(chunkId).put(monster.getId(), monster);
-            } catch (NullPointerException e) {
-                System.out.println("monsters.get(chunkId) == " + 
-                        monsters.get(getChunkId(monster.getLocation())) == null ? "null" : "not null");
-                e.printStackTrace();
-            } finally {
-                writeLock.unlock();
-            }
+            monsters.move(getChunkId(monster.getLocation()), getChunkId(location),
+                    monster.getId(), monster);
         }
     }
     
@@ -681,16 +805,8 @@ public class World {
      */
     public void addPlayer(ServerPlayer player) {
         if (player != null) {
-            writeLock.lock();
-            try {
-                long chunkId = getChunkId(player.getClientLocation());
-                if (!players.containsKey(chunkId)) {
-                    players.put(chunkId, new HashMap<Integer,ServerPlayer>());
-                }
-                players.get(chunkId).put(player.getId(), player);
-            } finally {
-                writeLock.unlock();
-            }
+            players.add(getChunkId(player.getClientLocation()), player.getId(), player);
+            interest.subscribe(player, player.getClientLocation());
         }
     }
     
@@ -701,16 +817,7 @@ public class World {
      */
     public void addMonster(ServerMonster monster) {
         if (monster != null) {
-            writeLock.lock();
-            try {
-                long chunkId = getChunkId(monster.getLocation());
-                if (!monsters.containsKey(chunkId)) {
-                    monsters.put(chunkId, new HashMap<Integer,ServerMonster>());
-                }
-                monsters.get(chunkId).put(monster.getId(), monster);
-            } finally {
-                writeLock.unlock();
-            }
+            monsters.add(getChunkId(monster.getLocation()), monster.getId(), monster);
         }
     }
     
@@ -720,20 +827,8 @@ public class World {
      */
     public void removePlayer(ServerPlayer player) {
         if (player != null) {
-            writeLock.lock();
-            try {
-                long chunkId = getChunkId(player.getClientLocation());
-                if (players.containsKey(chunkId)) {
-                    players.get(chunkId).remove(player.getId());
-                    
-                    // No more players in this chunk.  Removing chunk to save space.
-                    if (players.get(chunkId).size() == 0) {
-                        players.remove(chunkId);
-                    }
-                }
-            } finally {
-                writeLock.unlock();
-            }
+            players.remove(getChunkId(player.getClientLocation()), player.getId());
+            interest.unsubscribe(player, player.getClientLocation());
         }
     }
     
@@ -743,181 +838,252 @@ public class World {
      */
     public void removeMonster(ServerMonster monster) {
         if (monster != null) {
-            writeLock.lock();
-            try {
-                long chunkId = getChunkId(monster.getLocation());
-                if (monsters.containsKey(chunkId)) {
-                    monsters.get(chunkId).remove(monster.getId());
-                    
-                    // Broadcast the deletion of this monster
-                    Server.getInstance().localBroadcast(monster.getLocation(), 
-                            PacketCreator.getMonsterDamaged(null, monster, 0, 0));
-                    
-                    // No more monsters in this chunk.  Removing chunk to save space.
-                    if (monsters.get(chunkId).size() == 0) {
-                        monsters.remove(chunkId);
-                    }
-                }
-            } finally {
-                writeLock.unlock();
+            if (monsters.remove(getChunkId(monster.getLocation()), monster.getId())) {
+                // Broadcast the deletion of this monster
+                Server.getInstance().localBroadcast(monster.getLocation(), 
+                        PacketCreator.getMonsterDamaged(null, monster, 0, 0));
             }
         }
     }
     
     /**
-     * Get the location that is just before <code>end</code> based off of the
-     * starting location.
-     * TODO:  This function needs to be thought out better.  It's messing with 
-     * {@link #collideWithBlock(Location, Location)}collideWithBlock.
-     * @param start the location to start at
-     * @param end the old end location
-     * @param collision the new end location
-     * @return the location right before the end location; returns null if any parameter is null
+     * Returns whether the block at (x,y) is collidable.  This tests the
+     * chunk's collision bits, so the block itself is never looked up.
+     * @param x The x block coordinate of the world
+     * @param y The y block coordinate of the world
+     * @return true if the block is collidable
      */
-    public Location getMaxLocation(Location start, Location end, BoundLocation collision) {
-        // Guard
-        if (start == null || end == null || collision == null) {
-            return null;
-        }
-        
-        // Special case for same block
-        if (start.getX() == collision.getX() && start.getY() == collision.getY()) {
-            return start;
-        }
-        
-        boolean simpleMaxLocation = false; // true if this max location is a change in only one dimension (x or y)
+    public boolean isCollidable(int x, int y) {
+        x %= WorldConstants.WORLD_WIDTH;
+        x = x >= 0 ? x : WorldConstants.WORLD_WIDTH + x;
+        y = y >= 0 ? y : 0;
+        y = y >= WorldConstants.WORLD_HEIGHT ? WorldConstants.WORLD_HEIGHT - 1 : y;
+        ServerChunk chunk = loadChunk(x / WorldConstants.WORLD_CHUNK_WIDTH, y / WorldConstants.WORLD_CHUNK_HEIGHT);
+        return chunk.isCollidable(ServerChunk.getIndex(x, y));
+    }
+    
+    /**
+     * Returns whether the block containing the raw coordinates (rawX, rawY)
+     * is collidable.
+     * @param rawX The raw x coordinate.  See {@link Location#BLOCK_GRANULARITY}.
+     * @param rawY The raw y coordinate.
+     * @return true if the block is collidable
+     */
+    public boolean isCollidableRaw(long rawX, long rawY) {
+        return isCollidable((int) floorDiv(rawX, Location.BLOCK_GRANULARITY),
+                (int) floorDiv(rawY, Location.BLOCK_GRANULARITY));
+    }
+    
+    /**
+     * Returns the largest integer that is less than or equal to a / b.
+     * @param a The dividend
+     * @param b The divisor.  Must be positive.
+     * @return floor(a / b)
+     */
+    private static long floorDiv(long a, long b) {
+        return a >= 0 ? a / b : -((b - 1 - a) / b);
+    }
+    
+    /**
+     * Moves a box through the terrain and returns how much of the movement
+     * can be made before the box enters a collidable block.  The block
+     * boundaries are visited in the order that the box's leading edges cross
+     * them, and only the blocks along the edge that crossed are tested, so
+     * the cost depends on the distance moved and nothing is allocated.
+     * Blocks that the box already overlaps are ignored.
+     * <br /><br />
+     * All values are raw coordinates.  The box covers [rawX, rawX + rawWidth)
+     * and [rawY, rawY + rawHeight), so a 1 by 1 box is a single point.
+     * @param rawX The left edge of the box.
+     * @param rawY The top edge of the box.
+     * @param rawWidth The width of the box.  Must be at least 1.
+     * @param rawHeight The height of the box.  Must be at least 1.
+     * @param dx The distance to move right.  Negative values move left.
+     * @param dy The distance to move down.  Negative values move up.
+     * @return The fraction of the movement that can be made, from 0 to 1.
+     *         1 means that nothing was hit.
+     */
+    public double sweep(long rawX, long rawY, long rawWidth, long rawHeight, long dx, long dy) {
+        final long granularity = Location.BLOCK_GRANULARITY;
+        long adx = Math.abs(dx);
+        long ady = Math.abs(dy);
         
-        // Fix offsets for collision.
-        if (start.getX() == end.getX() && start.getXOffset() == end.getXOffset()) {
-            collision.setRawX(start.getRawX());
-            simpleMaxLocation = true;
-        }
-        if (start.getY() == end.getY() && start.getYOffset() == end.getYOffset()) {
-            collision.setRawY(start.getRawY());
-            simpleMaxLocation = true;
-        }
+        // How far each leading edge can move before it enters the next block
+        long distX = dx > 0 ? (floorDiv(rawX + rawWidth - 1, granularity) + 1) * granularity - (rawX + rawWidth)
+                : rawX - floorDiv(rawX, granularity) * granularity;
+        long distY = dy > 0 ? (floorDiv(rawY + rawHeight - 1, granularity) + 1) * granularity - (rawY + rawHeight)
+                : rawY - floorDiv(rawY, granularity) * granularity;
         
-        if (simpleMaxLocation) {
-            // Fix the x location
-            if (collision.getBlockDeltaX(start) > 0) {
-                collision.decrementX();
-            } else if (collision.getBlockDeltaX(start) < 0){
-                collision.moveRawRight(Location.BLOCK_GRANULARITY);
-            }
-            
-            // Fix the y location
-            if (collision.getBlockDeltaY(start) > 0) {
-                collision.decrementY();
-            } else if (collision.getBlockDeltaY(start) < 0) {
-                collision.moveRawDown(Location.BLOCK_GRANULARITY);
+        while (true) {
+            boolean crossX = distX < adx;
+            boolean crossY = distY < ady;
+            if (crossX && crossY) {
+                // Cross whichever boundary is reached first (distX / adx vs. distY / ady)
+                if (distX * ady <= distY * adx) {
+                    crossY = false;
+                } else {
+                    crossX = false;
+                }
             }
-        } else {
             /*
-             *  Special case:  Because Bresenham's line algorithm is using whole
-             *  block coordinates (and not subpixel coordinates), we need to use
-             *  a do-while loop to ensure that collision is not part of a block
-             *  that has collision.
+             *  When one edge crosses a boundary, the blocks tested along it are
+             *  the ones that the box covers just after the crossing.  This
+             *  includes the diagonal block when both edges cross at once.
              */
-            Block b;
-            BoundLocation prevCollision;
-            do {
-                prevCollision = collision;
-                collision = new BoundLocation(TerrainSession.getComplexMaxLocation(start, end, collision));
-                b = getBlock(collision.getX(), collision.getY());
-            } while (b != null && b.isCollidable() && !collision.equals(prevCollision));
+            if (crossX) {
+                // Test the column that the leading edge is entering
+                long column = dx > 0 ? floorDiv(rawX + rawWidth + distX, granularity)
+                        : floorDiv(rawX - distX - 1, granularity);
+                long top = rawY + (dy < 0 ? -floorDiv(-dy * distX, adx) - 1 : floorDiv(dy * distX, adx));
+                long bottom = rawY + rawHeight - 1 + (dy > 0 ? floorDiv(dy * distX, adx) + 1 : -floorDiv(-dy * distX, adx));
+                for (long row = floorDiv(top, granularity); row <= floorDiv(bottom, granularity); ++row) {
+                    if (isCollidable((int) column, (int) row)) {
+                        return (double) distX / adx;
+                    }
+                }
+                distX += granularity;
+            } else if (crossY) {
+                // Test the row that the leading edge is entering
+                long row = dy > 0 ? floorDiv(rawY + rawHeight + distY, granularity)
+                        : floorDiv(rawY - distY - 1, granularity);
+                long left = rawX + (dx < 0 ? -floorDiv(-dx * distY, ady) - 1 : floorDiv(dx * distY, ady));
+                long right = rawX + rawWidth - 1 + (dx > 0 ? floorDiv(dx * distY, ady) + 1 : -floorDiv(-dx * distY, ady));
+                for (long column = floorDiv(left, granularity); column <= floorDiv(right, granularity); ++column) {
+                    if (isCollidable((int) column, (int) row)) {
+                        return (double) distY / ady;
+                    }
+                }
+                distY += granularity;
+            } else {
+                return 1;
+            }
         }
-        
-        return collision;
     }
     
     /**
-     * Returns true if the path between <code>start</code> and <code>end</code>
-     * collides with a block.
-     * Uses Bresenham's line algorithm.
-     * @param end the starting location (before moving)
-     * @param end2 the ending location (after moving)
-     * @return modified location
+     * Returns the farthest location on the path from <code>start</code> to
+     * <code>end</code> that can be reached without moving into a collidable
+     * block.  The location is treated as a single point.
+     * @param start the starting location (before moving)
+     * @param end the ending location (after moving)
+     * @return <code>end</code> if nothing was hit; else the location just
+     *         before the first collidable block.
      */
-    public Location collideWithBlock(Location end, Location end2) {
-        Location specialEnd = new Location(end2); // used for sub-pixel checks
-        int x0 = end.getX();
-        int y0 = end.getY();
-        int x1;
-        int y1;
-
-        // Special check for sub-pixels
-        // In order for "jitter" to occur, start and end must be the same block
-        if (end.getX() == end2.getX() && end.getY() == end2.getY()) {
-            
-            if (end2.getXOffset() < 1.0f && end.getXOffset() > end2.getXOffset()) {
-                specialEnd.moveLeft(1);
-            } else if (end2.getXOffset() > (WorldConstants.WORLD_BLOCK_WIDTH-1) && end.getXOffset() < end2.getXOffset()) {
-                specialEnd.moveRight(1);
-            }
-            if (end2.getYOffset() < 1.0f && end.getYOffset() > end2.getYOffset()) {
-                specialEnd.moveUp(1);
-            } else if (end2.getYOffset() > (WorldConstants.WORLD_BLOCK_HEIGHT-1) && end.getYOffset() < end2.getYOffset()) {
-                specialEnd.moveDown(1);
-            }
+    public Location collideWithBlock(Location start, Location end) {
+        long dx = end.getRawDeltaX(start);
+        long dy = end.getRawDeltaY(start);
+        double fraction = sweep(start.getRawX(), start.getRawY(), 1, 1, dx, dy);
+        if (fraction >= 1) {
+            return end; // no collision
         }
-        x1 = specialEnd.getX();
-        y1 = specialEnd.getY();
+        Location result = new BoundLocation(start);
+        result.moveRawRight((long) (dx * fraction));
+        result.moveRawDown((long) (dy * fraction));
+        return result;
+    }
+    
+    /**
+     * Returns the y coordinate of the ground in column x nearest to
+     * <code>yHint</code>.  Ground is a collidable block with a block that is
+     * not collidable above it.  If (x, yHint) is open, this is the floor of
+     * that open space:  the surface if yHint is in the sky, or the floor of
+     * the cave that yHint is in.  If (x, yHint) is collidable, this is the
+     * top of the solid blocks that it is in.
+     * <br /><br />
+     * The highest ground of each column is kept in a heightmap, so placing
+     * something on the surface takes constant time.  Other queries test a
+     * whole column of a chunk at a time.
+     * @param x The x block coordinate of the world
+     * @param yHint The y block coordinate to start searching from
+     * @return the y coordinate of the ground, or {@link #NO_GROUND} if there
+     *         is no ground below yHint.
+     */
+    public int findGround(int x, int yHint) {
+        x %= WorldConstants.WORLD_WIDTH;
+        x = x >= 0 ? x : WorldConstants.WORLD_WIDTH + x;
+        yHint = yHint >= 0 ? yHint : 0;
+        yHint = yHint >= WorldConstants.WORLD_HEIGHT ? WorldConstants.WORLD_HEIGHT - 1 : yHint;
         
-        boolean steep = Math.abs(y1 - y0) > Math.abs(x1 - x0);
-        int tmp;
-        if (steep) {
-            tmp = x0;
-            x0 = y0;
-            y0 = tmp;
-            
-            tmp = x1;
-            x1 = y1;
-            y1 = tmp;
-        }
-        int deltax = Math.abs(x1 - x0);
-        int deltay = Math.abs(y1 - y0);
-        int error  = deltax / 2;
-        int ystep;
-        int y = y0;
-        if (y0 < y1) {
-            ystep = 1;
-        } else {
-            ystep = -1;
+        int height = heightmap.get(x);
+        if (height != NO_GROUND) {
+            if (yHint <= height) {
+                return height; // Everything above the highest ground is open
+            }
+        } else if (yHint == 0) {
+            // Searching from the top of the world finds the highest ground
+            height = findGroundBelow(x, 0);
+            heightmap.compareAndSet(x, NO_GROUND, height);
+            return height;
+        }
+        return isCollidable(x, yHint) ? findGroundAbove(x, yHint) : findGroundBelow(x, yHint);
+    }
+    
+    /**
+     * Returns a location on the ground in the same column as
+     * <code>location</code>, found with {@link #findGround(int, int)}.
+     * The location is at the bottom of the open block above the ground, which
+     * is where something falling onto the ground would stop.
+     * @param location The location to start searching from
+     * @return a new location on the ground, or a copy of <code>location</code>
+     *         if there is no ground below it.
+     */
+    public BoundLocation getGroundLocation(Location location) {
+        BoundLocation result = new BoundLocation(location);
+        int ground = findGround(location.getX(), location.getY());
+        if (ground != NO_GROUND) {
+            result.setRawY((long) ground * Location.BLOCK_GRANULARITY - 1);
         }
+        return result;
+    }
+    
+    /**
+     * Returns the first ground at or below (x,y).
+     * @param x The x block coordinate of the world.  Must be in the world.
+     * @param y The y block coordinate of the world.  Must be in the world.
+     * @return y coordinate of the ground, or {@link #NO_GROUND}
+     */
+    private int findGroundBelow(int x, int y) {
+        final int height = WorldConstants.WORLD_CHUNK_HEIGHT;
+        int chunkX = x / WorldConstants.WORLD_CHUNK_WIDTH;
+        int column = x % WorldConstants.WORLD_CHUNK_WIDTH;
+        int chunkY = y / height;
         
-        int inc;
-        if (x0 < x1) {
-            inc = 1;
-        } else {
-            inc = -1;
-        }
-        // We want to ignore starting position.  Return if we get a solid block
-        // TODO:  Should we allow collisions on our current block?
-        boolean isLast = false;
-        for (int x=x0; x != x1 || isLast; x+=inc) {
-            if (steep) {
-                Block b = getBlock(y, x);
-                if (b == null || b.isCollidable()) {
-                    return getMaxLocation(end, end2, new BoundLocation(y,x));
-                }
-            } else {
-                Block b = getBlock(x, y);
-                if (b == null || b.isCollidable()) {
-                    return getMaxLocation(end, end2, new BoundLocation(x,y));
-                }
-            }
-            error -= deltay;
-            if (error < 0) {
-                y += ystep;
-                error += deltax;
+        // Whether the block just above the current chunk is collidable
+        long above = chunkY == 0 ? 0
+                : loadChunk(chunkX, chunkY - 1).getCollidableColumn(column) >>> (height - 1);
+        long skip = (1L << (y % height)) - 1; // Rows above y in the first chunk
+        for (; chunkY < WorldConstants.WORLD_CHUNKS_TALL; ++chunkY) {
+            long blocks = loadChunk(chunkX, chunkY).getCollidableColumn(column);
+            long ground = blocks & ~((blocks << 1) | above) & ~skip;
+            if (ground != 0) {
+                return chunkY * height + Long.numberOfTrailingZeros(ground);
             }
-            if (isLast) {
-                break;
+            above = blocks >>> (height - 1);
+            skip = 0;
+        }
+        return NO_GROUND;
+    }
+    
+    /**
+     * Returns the top of the collidable blocks that (x,y) is a part of.
+     * @param x The x block coordinate of the world.  Must be in the world.
+     * @param y The y block coordinate of the world.  Must be collidable.
+     * @return y coordinate of the ground
+     */
+    private int findGroundAbove(int x, int y) {
+        final int height = WorldConstants.WORLD_CHUNK_HEIGHT;
+        int chunkX = x / WorldConstants.WORLD_CHUNK_WIDTH;
+        int column = x % WorldConstants.WORLD_CHUNK_WIDTH;
+        long rows = (1L << (y % height)) - 1; // Rows above y in the first chunk
+        for (int chunkY = y / height; chunkY >= 0; --chunkY) {
+            long open = ~loadChunk(chunkX, chunkY).getCollidableColumn(column) & rows;
+            if (open != 0) {
+                // The ground is just below the lowest open block
+                return chunkY * height + 64 - Long.numberOfLeadingZeros(open);
             }
-            isLast = x+inc == x1;
+            rows = height == 64 ? -1L : (1L << height) - 1;
         }
-                
-        return end2; // no collision
+        return 0;
     }
 
     /**
@@ -925,7 +1091,9 @@ public class World {
      * @param delta The amount of time that has passed in milliseconds.
      */
     public void update(long delta) {
+        ++tick;
         blockDamage.update(delta);
+        blockChanges.flush();
     }
 
     /**
@@ -936,17 +1104,25 @@ public class World {
      * @return spawnChance
      */
     public float getSpawnChance(BoundLocation location) {
+        Region region = getRegion(location);
+        return region == null ? 0 : region.getSpawnChance();
+    }
+    
+    /**
+     * Returns the region containing a location.
+     * @param location The location.
+     * @return region, or null if the location is impossible.
+     */
+    private Region getRegion(Location location) {
         if (location == null) {
-            return 0;
+            return null;
         }
-        
         int rx = location.getX() / WorldConstants.WORLD_CHUNK_WIDTH / WorldConstants.WORLD_REGION_WIDTH;
         int ry = location.getY() / WorldConstants.WORLD_CHUNK_HEIGHT / WorldConstants.WORLD_REGION_HEIGHT;
         if (rx >= 0 && ry >= 0 && regions.length > rx && regions[rx].length > ry) {
-            return regions[rx][ry].getSpawnChance();
+            return regions[rx][ry];
         }
-        
-        return 0; // Impossible location
+        return null; // Impossible location
     }
     
     /**
@@ -961,19 +1137,40 @@ public class World {
         if (location == null) {
             return 0;
         }
-        
-        int difficultyX = (WorldConstants.WORLD_WIDTH / 2) - location.getX();
+        int x = location.getX();
+        int chunkY = location.getY() / WorldConstants.WORLD_CHUNK_HEIGHT;
+        if (x < 0 || chunkY < 0 || x >= WorldConstants.WORLD_WIDTH
+                || chunkY >= WorldConstants.WORLD_CHUNKS_TALL) {
+            return 0;
+        }
+        return DIFFICULTY_X[x] + DIFFICULTY_Y[chunkY];
+    }
+    
+    /**
+     * Returns the difficulty added by a block's x coordinate, which increases
+     * towards the center of the world.
+     * @param x The x block coordinate of the world
+     * @return difficulty, from 0 to 100.
+     */
+    private static int computeDifficultyX(int x) {
+        int difficultyX = (WorldConstants.WORLD_WIDTH / 2) - x;
         difficultyX = difficultyX < 0 ? -difficultyX : difficultyX;
-        difficultyX = (int) (100.0 * ((WorldConstants.WORLD_WIDTH / 2.0 - difficultyX) / (WorldConstants.WORLD_WIDTH / 2.0)));
-
+        return (int) (100.0 * ((WorldConstants.WORLD_WIDTH / 2.0 - difficultyX) / (WorldConstants.WORLD_WIDTH / 2.0)));
+    }
+    
+    /**
+     * Returns the difficulty added by a chunk's y coordinate, which increases
+     * below the 20th chunk.
+     * @param chunkY The chunk's y coordinate.
+     * @return difficulty, from 0 to 20.
+     */
+    private static int computeDifficultyY(int chunkY) {
         int difficultyY = 0;
-        if (location.getY() / WorldConstants.WORLD_CHUNK_HEIGHT > 20) {
-            difficultyY = (int) (location.getY() / WorldConstants.WORLD_CHUNK_HEIGHT) - 20;
-            difficultyY = difficultyY < 0 ? 0 : difficultyY;
+        if (chunkY > 20) {
+            difficultyY = chunkY - 20;
             difficultyY = (int)(20.0 * (difficultyY / (WorldConstants.WORLD_CHUNKS_TALL - 20.0)));
         }
-        
-        return difficultyX + difficultyY;
+        return difficultyY;
     }
 
     /**
@@ -985,14 +1182,30 @@ public class World {
      * @return monsterData
      */
     public ServerMonsterData getMonster(BoundLocation location) {
-        int monsterDifficulty = getMonsterDifficulty(location);
-        
-        int rx = location.getX() / WorldConstants.WORLD_CHUNK_WIDTH / WorldConstants.WORLD_REGION_WIDTH;
-        int ry = location.getY() / WorldConstants.WORLD_CHUNK_HEIGHT / WorldConstants.WORLD_REGION_HEIGHT;
-        if (rx >= 0 && ry >= 0 && regions.length > rx && regions[rx].length > ry) {
-            return regions[rx][ry].getMonster(monsterDifficulty);
+        Region region = getRegion(location);
+        return region == null ? null : region.getMonster(getMonsterDifficulty(location));
+    }
+    
+    /**
+     * Builds the spawn tables of every region.  Regions of the same type
+     * share their tables.  This must be called after the monsters have been
+     * loaded.
+     */
+    private void createSpawnTables() {
+        Collection<ServerMonsterData> monsters = ServerMonsterManager.getInstance().getAllServerMonsterData();
+        Map<Class<? extends Region>, SpawnTable[]> tables = new HashMap<Class<? extends Region>, SpawnTable[]>();
+        for (int i=0; i < regions.length; ++i) {
+            for (int j=0; j < regions[i].length; ++j) {
+                Region region = regions[i][j];
+                if (region != null) {
+                    SpawnTable[] table = tables.get(region.getClass());
+                    if (table == null) {
+                        table = region.createSpawnTables(monsters);
+                        tables.put(region.getClass(), table);
+                    }
+                    region.setSpawnTables(table);
+                }
+            }
         }
-        
-        return null;
     }
 }
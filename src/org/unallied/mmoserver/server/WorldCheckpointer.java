@@ -0,0 +1,29 @@
+package org.unallied.mmoserver.server;
+
+import org.unallied.mmoserver.constants.ServerConstants;
+
+/**
+ * Periodically saves all changed chunks to disk and throws away the journaled
+ * block changes that have been saved.  This runs on its own thread so that
+ * the server updater never has to wait for the disk.
+ * @author Alexandria
+ *
+ */
+public class WorldCheckpointer implements Runnable {
+
+    @Override
+    public void run() {
+        while (Server.getInstance().isOnline()) {
+            try {
+                Thread.sleep(ServerConstants.SAVE_WORLD_FREQUENCY);
+            } catch (InterruptedException e) {
+            }
+            try {
+                World.getInstance().save();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+        System.out.println("Server is not online.  World Checkpointer has stopped.");
+    }
+}
@@ -0,0 +1,519 @@
+package org.unallied.mmoserver.server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import libnoiseforjava.exception.ExceptionInvalidParam;
+import libnoiseforjava.module.Perlin;
+
+import org.unallied.mmocraft.BlockType;
+import org.unallied.mmocraft.constants.WorldConstants;
+import org.unallied.mmoserver.server.regions.DesertRegion;
+import org.unallied.mmoserver.server.regions.HillsRegion;
+import org.unallied.mmoserver.server.regions.PlainsRegion;
+import org.unallied.mmoserver.server.regions.Region;
+import org.unallied.mmoserver.server.regions.ShatteredRegion;
+
+/**
+ * Generates the world from a seed.  The regions and the paths of all
+ * worm-like tunnels are planned up front, which is cheap.  Blocks are then
+ * generated one chunk at a time from Perlin noise, and the tunnels that pass
+ * through the chunk are carved out of it.  The same seed will always generate
+ * the same world, no matter which order chunks are generated in or how many
+ * threads are used.
+ * @author Faythless
+ *
+ */
+public class WorldGenerator {
+
+    private static final double HEAT_FREQUENCY = 1.80;
+    private static final double HEAT_LACUNARITY = 0.30;
+    private static final double HEAT_PERSISTENCE = 0.95;
+    private static final int HEAT_OCTAVE_COUNT = 6;
+
+    private static final double HUMIDITY_FREQUENCY = 1.70;
+    private static final double HUMIDITY_LACUNARITY = 0.30;
+    private static final double HUMIDITY_PERSISTENCE = 0.95;
+    private static final int HUMIDITY_OCTAVE_COUNT = 6;
+
+    /** The number of chunk columns that a single generation task will generate. */
+    private static final int CHUNK_STRIP_WIDTH = 4;
+
+    /** The seed of the world. */
+    private final long seed;
+
+    /** The seed used for the terrain's Perlin noise. */
+    private final int terrainSeed;
+
+    /** The regions of the world.  Regions modify the terrain's Perlin noise. */
+    private final Region[][] regions = new Region[(int)WorldConstants.WORLD_REGIONS_WIDE][(int)WorldConstants.WORLD_REGIONS_TALL];
+
+    /**
+     * The terrain noise for each type of region.  Each thread has its own
+     * noise, because Perlin modules cannot be shared between threads.
+     */
+    private final ThreadLocal<Map<Class<? extends Region>, Perlin>> noise =
+            new ThreadLocal<Map<Class<? extends Region>, Perlin>>() {
+        @Override
+        protected Map<Class<? extends Region>, Perlin> initialValue() {
+            return new HashMap<Class<? extends Region>, Perlin>();
+        }
+    };
+
+    /** 
+     * The tunnel circles that touch each chunk, indexed by
+     * x * WORLD_CHUNKS_TALL + y.  Each circle is stored as (x, y, radius).
+     */
+    private final int[][] wormCircles = new int[WorldConstants.WORLD_CHUNKS_WIDE * WorldConstants.WORLD_CHUNKS_TALL][];
+
+    /** The number of ints used in each array of {@link #wormCircles}. */
+    private final int[] wormCircleCounts = new int[WorldConstants.WORLD_CHUNKS_WIDE * WorldConstants.WORLD_CHUNKS_TALL];
+
+    /** The largest radius of any tunnel circle.  Only used while planning. */
+    private int maxRadius = 0;
+
+    /** The disc templates for every tunnel radius.  See {@link #createDiscs(int)}. */
+    private int[][] discs;
+
+    /** The total time in nanoseconds spent carving tunnels into chunks. */
+    private final AtomicLong carveTime = new AtomicLong();
+
+    /**
+     * Creates the noise generators and regions for a world.
+     * @param seed The world's seed.
+     */
+    public WorldGenerator(long seed) {
+        // Tunnels are carved with one long of bits per column
+        if (WorldConstants.WORLD_CHUNK_HEIGHT > 64) {
+            throw new IllegalStateException("Chunks may be at most 64 blocks tall, but WORLD_CHUNK_HEIGHT is "
+                    + WorldConstants.WORLD_CHUNK_HEIGHT + ".");
+        }
+        this.seed = seed;
+        Random random = new Random(seed);
+        Perlin heat     = new Perlin(random.nextInt());
+        heat.setFrequency(HEAT_FREQUENCY);
+        heat.setLacunarity(HEAT_LACUNARITY);
+        heat.setPersistence(HEAT_PERSISTENCE);
+        try {
+            heat.setOctaveCount(HEAT_OCTAVE_COUNT);
+        } catch (ExceptionInvalidParam e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+
+        Perlin humidity = new Perlin(random.nextInt());
+        humidity.setFrequency(HUMIDITY_FREQUENCY);
+        humidity.setLacunarity(HUMIDITY_LACUNARITY);
+        humidity.setPersistence(HUMIDITY_PERSISTENCE);
+        try {
+            humidity.setOctaveCount(HUMIDITY_OCTAVE_COUNT);
+        } catch (ExceptionInvalidParam e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+
+        terrainSeed = random.nextInt();
+
+        // Create the regions
+        for (int i=0; i < WorldConstants.WORLD_REGIONS_WIDE; ++i) {
+            for (int j=0; j < WorldConstants.WORLD_REGIONS_TALL; ++j) {
+                regions[i][j] = generateRegion(heat, humidity, i, j);
+                System.out.print(regions[i][j].toString().split("@")[0] + "\n");
+            }
+        }
+
+        // Set surrounding region information
+        for (int i=0; i < WorldConstants.WORLD_REGIONS_WIDE; ++i) {
+            for (int j=0; j < WorldConstants.WORLD_REGIONS_TALL; ++j) {
+                int top   = (j-1) % (int)WorldConstants.WORLD_REGIONS_TALL;
+                int bot   = (j+1) % (int)WorldConstants.WORLD_REGIONS_TALL;
+                int left  = (i-1) % (int)WorldConstants.WORLD_REGIONS_WIDE;
+                int right = (i+1) % (int)WorldConstants.WORLD_REGIONS_WIDE;
+                top   = top   < 0 ? (int)WorldConstants.WORLD_REGIONS_TALL+top   : top;
+                bot   = bot   < 0 ? (int)WorldConstants.WORLD_REGIONS_TALL+bot   : bot;
+                left  = left  < 0 ? (int)WorldConstants.WORLD_REGIONS_WIDE+left  : left;
+                right = right < 0 ? (int)WorldConstants.WORLD_REGIONS_WIDE+right : right;
+                regions[i][j].setRegions(regions[i][top], regions[right][j],
+                        regions[i][bot], regions[left][j]);
+            }
+        }
+
+        long startTime = System.currentTimeMillis();
+        planWorms();
+        discs = createDiscs(maxRadius);
+        System.out.println("Finished planning tunnels in "
+                + (System.currentTimeMillis() - startTime) + " ms.");
+    }
+
+    /**
+     * Returns the regions of the world.
+     * @return regions
+     */
+    public Region[][] getRegions() {
+        return regions;
+    }
+
+    /**
+     * Creates a region at (x,y) where each unit is a region.
+     * Only the x coordinate is used to determine heat and rainfall.
+     * This is because the world is 2D, so the heatmap and rainfall map
+     * are just a horizontal line.
+     * @param heat A Perlin noise generator for how hot a region is.
+     * @param humidity A Perlin noise generator for the amount of rainfall
+     * received by a region.
+     * @param x The x coordinate of the region.  Starting at 0, each unit is
+     * 1 region.
+     * @param y The y coordinate of the region.  Starting at 0, each unit is
+     * 1 region.
+     * @return region at position (x, y).  Will return a region even if it is
+     * outside of the world's region boundaries.
+     */
+    public Region generateRegion(Perlin heat, Perlin humidity, int x, int y) {
+
+        // Get heat and rainfall in %'s from roughly 0 ~ 100%
+        double iheat    = (heat.getValue(x, 0.5)+1) * 50;
+        double rainfall = (humidity.getValue(x, 0.5)+1) * 50;
+
+        //http://www.minecraftwiki.net/wiki/File:BiomesGraph.png <-- use this to help
+        System.out.print("Heat: " + iheat + "  | Rain: " + rainfall + " | ");
+
+        if (rainfall < 25) {
+            if (iheat < 25) {
+                return new PlainsRegion(x, y);
+            } else {
+                return new DesertRegion(x, y);
+            }
+        } else if (rainfall < 50) {
+            return new HillsRegion(x, y);
+        } else if (rainfall < 75) {
+            return new HillsRegion(x, y);
+        } else {
+            return new ShatteredRegion(x, y);
+        }
+    }
+
+    /**
+     * Generates a single block from Perlin noise.  This does not include
+     * any tunnels.  This is safe to call from multiple threads.
+     * @param x The x block coordinate of the world
+     * @param y The y block coordinate of the world
+     * @return the value of the generated block
+     */
+    public byte generateBlock(int x, int y) {
+        Region region = regions[x/(int)WorldConstants.WORLD_REGION_WIDTH][y/(int)WorldConstants.WORLD_REGION_HEIGHT];
+        Map<Class<? extends Region>, Perlin> modules = noise.get();
+        Perlin perlin = modules.get(region.getClass());
+        if (perlin == null) {
+            perlin = region.createNoise(terrainSeed);
+            modules.put(region.getClass(), perlin);
+        }
+        double val = region.getValue(perlin, x, y);
+        // Universal weighting based on height
+        val += WorldConstants.WORLD_WEIGHT * y / WorldConstants.WORLD_HEIGHT;
+        return region.getBlock(val);
+    }
+
+    /**
+     * Generates a single chunk, including any tunnels that pass through it.
+     * A chunk is always generated the same way, no matter which chunks have
+     * already been generated.  This is safe to call from multiple threads.
+     * @param chunkX The chunk's x coordinate in chunks.
+     * @param chunkY The chunk's y coordinate in chunks.
+     * @param blocks The chunk's blocks, laid out as described in {@link ServerChunk}.
+     */
+    public void generateChunk(int chunkX, int chunkY, byte[] blocks) {
+        int minX = chunkX * WorldConstants.WORLD_CHUNK_WIDTH;
+        int minY = chunkY * WorldConstants.WORLD_CHUNK_HEIGHT;
+        for (int i=minX; i < minX + WorldConstants.WORLD_CHUNK_WIDTH; ++i) {
+            for (int j=minY; j < minY + WorldConstants.WORLD_CHUNK_HEIGHT; ++j) {
+                blocks[ServerChunk.getIndex(i, j)] = generateBlock(i, j);
+            }
+        }
+        
+        // Carve out the tunnels that pass through this chunk
+        int index = chunkX * WorldConstants.WORLD_CHUNKS_TALL + chunkY;
+        int[] circles = wormCircles[index];
+        if (circles != null) {
+            long startTime = System.nanoTime();
+            long[] carved = new long[WorldConstants.WORLD_CHUNK_WIDTH];
+            for (int i=0; i < wormCircleCounts[index]; i += 3) {
+                carveDisc(carved, minX, minY, circles[i], circles[i+1], circles[i+2]);
+            }
+            clearCarved(blocks, carved);
+            carveTime.addAndGet(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Generates every chunk in the world.  Normally chunks are only generated
+     * the first time that they are needed.
+     * @param world The world to generate.
+     * @param threads The number of threads to generate the world with.
+     */
+    public void generate(World world, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long startTime = System.currentTimeMillis();
+            long startCarveTime = carveTime.get();
+            pool.invoke(new ChunkTask(world, 0, WorldConstants.WORLD_CHUNKS_WIDE));
+            System.out.println("Finished generating all chunks in "
+                    + (System.currentTimeMillis() - startTime) + " ms using " + threads + " threads ("
+                    + (carveTime.get() - startCarveTime) / 1000000 + " ms carving tunnels).");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns a random number generator for a single worm.  Each worm has its
+     * own generator so that worms can be planned in any order.
+     * @param pass The worm pass that this worm belongs to.
+     * @param index The index of the worm in its pass.
+     * @return random
+     */
+    private Random getWormRandom(int pass, long index) {
+        // SplitMix64 so that neighboring worms get unrelated seeds
+        long z = seed + (pass * WorldConstants.WORM_COUNT * 10000 + index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return new Random(z ^ (z >>> 31));
+    }
+
+    /**
+     * Plans all of the worm-like tunnels in the world.  Worms are not carved
+     * here.  Instead, every circle that a worm would carve is added to each
+     * chunk that it touches, and is carved when that chunk is generated.
+     */
+    private void planWorms() {
+        // make "dungeons" (really long tunnels)
+        for (long i=0; i < WorldConstants.WORM_COUNT; ++i) {
+            planWorm(getWormRandom(0, i), 3, WorldConstants.WORM_RADIUS_CHANGE_RATE,
+                    WorldConstants.WORM_DIRECTION_CHANGE_RATE, WorldConstants.WORM_LENGTH);
+        }
+        // Punch out little holes in the world
+        for (long i=0; i < WorldConstants.WORM_COUNT*1667; ++i) {
+            planWorm(getWormRandom(1, i), 2, 90,
+                    WorldConstants.WORM_DIRECTION_CHANGE_RATE*2, 93000);
+        }
+    }
+
+    /**
+     * Plans a single worm-like tunnel through the world.
+     * @param random The random number generator for this worm
+     * @param wormRadius  Average radius of the worm
+     * @param wormRadiusChangeRate Rate at which the worm changes its radius.
+     * Higher values cause it to change more frequently.  Should be between
+     * 1 and 99.
+     * @param wormDirectionChangeRate  Average rate at which the worm changes
+     * its direction.  Higher values cause it to change more frequently.
+     * Should be between 1 and 99.
+     * @param wormLength  Average length of the worm.  Higher values cause the
+     * worm to be longer.  Should be between 1 and 99999.
+     */
+    private void planWorm(Random random, int wormRadius, int wormRadiusChangeRate,
+            int wormDirectionChangeRate, long wormLength) {
+        // Each worm should start at a uniformly distributed random location (x,y)
+        long x = (long) (WorldConstants.WORLD_WIDTH * random.nextDouble());
+        long y = (long) (WorldConstants.WORLD_HEIGHT * random.nextDouble());
+        int directionX = random.nextInt(3) - 1;
+        int directionY = random.nextInt(3) - 1;
+        int radius = (int) (random.nextGaussian()*2+wormRadius);
+        radius = radius < 1 ? 1 : radius;
+
+        // While this worm needs to keep going
+        do {
+
+            // Remember the circle for every chunk that it touches
+            addCircle((int)x, (int)y, radius);
+
+            // See if radius changed
+            if (random.nextInt(100) < wormRadiusChangeRate) {
+                // Get new radius
+                radius += (int) (random.nextGaussian()*2+wormRadius) > radius ? 1 : -1;
+                radius = radius < 1 ? 1 : radius;
+            }
+
+            x += directionX;
+            y += directionY;
+
+            // See if direction changed
+            if (random.nextInt(100) < wormDirectionChangeRate) {
+                // Get new direction
+                directionX = random.nextInt(3) - 1;
+                directionY = random.nextInt(3) - 1;
+            }
+        }
+        while (random.nextInt(100000) < wormLength);
+    }
+
+    /**
+     * Adds a tunnel circle to every chunk that it touches.  A worm that has
+     * not moved adds the same circle again, which is skipped.
+     * @param x The center x block coordinate of the world
+     * @param y The center y block coordinate of the world
+     * @param radius The circle radius in blocks
+     */
+    private void addCircle(int x, int y, int radius) {
+        if (x + radius < 0 || y + radius < 0) {
+            return; // Entirely outside of the world
+        }
+        maxRadius = Math.max(maxRadius, radius);
+        int minX = Math.max(x - radius, 0) / WorldConstants.WORLD_CHUNK_WIDTH;
+        int minY = Math.max(y - radius, 0) / WorldConstants.WORLD_CHUNK_HEIGHT;
+        int maxX = Math.min(x + radius, WorldConstants.WORLD_WIDTH - 1) / WorldConstants.WORLD_CHUNK_WIDTH;
+        int maxY = Math.min(y + radius, WorldConstants.WORLD_HEIGHT - 1) / WorldConstants.WORLD_CHUNK_HEIGHT;
+        for (int i=minX; i <= maxX; ++i) {
+            for (int j=minY; j <= maxY; ++j) {
+                int index = i * WorldConstants.WORLD_CHUNKS_TALL + j;
+                int count = wormCircleCounts[index];
+                int[] circles = wormCircles[index];
+                if (count > 0 && circles[count-3] == x && circles[count-2] == y
+                        && circles[count-1] == radius) {
+                    continue;
+                }
+                if (circles == null) {
+                    circles = new int[3 * 4];
+                } else if (count == circles.length) {
+                    circles = Arrays.copyOf(circles, count * 2);
+                }
+                circles[count]   = x;
+                circles[count+1] = y;
+                circles[count+2] = radius;
+                wormCircles[index] = circles;
+                wormCircleCounts[index] = count + 3;
+            }
+        }
+    }
+
+    /**
+     * Creates the disc templates for every radius up to <code>maxRadius</code>.
+     * Each template holds the half height of the disc at each distance from
+     * its center column, so that a disc can be carved one column span at a
+     * time.  The discs have the same shape as filled midpoint circles.
+     * @param maxRadius The largest radius of any tunnel circle.
+     * @return templates, indexed by radius and then by distance from the center.
+     */
+    private static int[][] createDiscs(int maxRadius) {
+        int[][] result = new int[maxRadius + 1][];
+        for (int radius=0; radius <= maxRadius; ++radius) {
+            int[] heights = new int[radius + 1];
+            heights[0] = radius;
+            int f = 1 - radius;
+            int ddF_x = 1;
+            int ddF_y = -2 * radius;
+            int x = 0;
+            int y = radius;
+            while (x < y) {
+                if (f >= 0) {
+                    --y;
+                    ddF_y += 2;
+                    f += ddF_y;
+                }
+                ++x;
+                ddF_x += 2;
+                f += ddF_x;
+                // The circle is filled with rectangles reaching out to (x,y) and (y,x)
+                for (int i=0; i <= x; ++i) {
+                    heights[i] = Math.max(heights[i], y);
+                }
+                for (int i=0; i <= y; ++i) {
+                    heights[i] = Math.max(heights[i], x);
+                }
+            }
+            result[radius] = heights;
+        }
+        return result;
+    }
+
+    /**
+     * Marks the blocks of a chunk that are inside of a tunnel circle.  Each
+     * column of the chunk has one bit per block (chunks may be at most 64
+     * blocks tall; see the constructor), so circles that overlap are
+     * merged and every block is only cleared once by {@link #clearCarved(byte[], long[])}.
+     * @param carved The carved bits of each column of the chunk
+     * @param minX The x block coordinate of the chunk's left side
+     * @param minY The y block coordinate of the chunk's top side
+     * @param x0 The center x block coordinate of the world
+     * @param y0 The center y block coordinate of the world
+     * @param radius The circle radius in blocks to carve around (x,y)
+     */
+    private void carveDisc(long[] carved, int minX, int minY, int x0, int y0, int radius) {
+        final int height = WorldConstants.WORLD_CHUNK_HEIGHT;
+        int[] heights = discs[radius];
+        int start = Math.max(x0 - radius, minX);
+        int end = Math.min(x0 + radius, minX + WorldConstants.WORLD_CHUNK_WIDTH - 1);
+        for (int x=start; x <= end; ++x) {
+            int halfHeight = heights[Math.abs(x - x0)];
+            int top = Math.max(y0 - halfHeight - minY, 0);
+            int bottom = Math.min(y0 + halfHeight - minY, height - 1);
+            if (top <= bottom) {
+                carved[x - minX] |= (-1L >>> (63 - (bottom - top))) << top;
+            }
+        }
+    }
+
+    /**
+     * Replaces every carved block of a chunk with air.
+     * @param blocks The blocks of the chunk
+     * @param carved The carved bits of each column of the chunk, from
+     *               {@link #carveDisc(long[], int, int, int, int, int)}
+     */
+    private void clearCarved(byte[] blocks, long[] carved) {
+        final int height = WorldConstants.WORLD_CHUNK_HEIGHT;
+        final byte air = BlockType.AIR.getValue();
+        for (int i=0; i < carved.length; ++i) {
+            long bits = carved[i];
+            while (bits != 0) {
+                // Fill each run of carved blocks at once
+                int top = Long.numberOfTrailingZeros(bits);
+                int bottom = top + Long.numberOfTrailingZeros(~(bits >>> top));
+                Arrays.fill(blocks, i * height + top, i * height + bottom, air);
+                bits &= bottom == 64 ? 0 : -1L << bottom;
+            }
+        }
+    }
+
+    /**
+     * Generates a range of chunk columns, splitting the range in half until
+     * it is at most {@link WorldGenerator#CHUNK_STRIP_WIDTH} chunks wide.
+     * @author Faythless
+     *
+     */
+    private class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final World world;
+
+        /** The first chunk column to generate. */
+        private final int start;
+
+        /** One past the last chunk column to generate. */
+        private final int end;
+
+        public ChunkTask(World world, int start, int end) {
+            this.world = world;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > CHUNK_STRIP_WIDTH) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new ChunkTask(world, start, middle),
+                        new ChunkTask(world, middle, end));
+                return;
+            }
+            for (int i=start; i < end; ++i) {
+                for (int j=0; j < WorldConstants.WORLD_CHUNKS_TALL; ++j) {
+                    world.prepareChunk(i, j);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.unallied.mmoserver.server;
+
+import org.unallied.mmocraft.constants.WorldConstants;
+
+/**
+ * A read-only view of every chunk in the world as it was when the snapshot
+ * was taken.  Taking a snapshot takes constant time and never waits for the
+ * world to stop changing.  Chunks are copied lazily:  the first change to a
+ * chunk after the snapshot was taken copies the chunk's blocks, and the
+ * snapshot keeps reading the old ones.
+ * <br /><br />
+ * Snapshots keep old blocks in memory, so they must be released with
+ * {@link #release()} when they are no longer needed.
+ * @author Alexandria
+ *
+ */
+public class WorldSnapshot {
+
+    private final World world;
+
+    private final SnapshotEpochs epochs;
+
+    /** The last epoch whose changes are part of this snapshot. */
+    private final long epoch;
+
+    private boolean released = false;
+
+    WorldSnapshot(World world, SnapshotEpochs epochs) {
+        this.world = world;
+        this.epochs = epochs;
+        this.epoch = epochs.open();
+    }
+
+    /**
+     * Returns the epoch of this snapshot.  Snapshots with a higher epoch are
+     * newer.
+     * @return epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Copies the blocks of a chunk as they were when this snapshot was taken.
+     * Chunks that have not been loaded yet are loaded first.
+     * @param x The chunk's x coordinate in chunks.
+     * @param y The chunk's y coordinate in chunks.
+     * @param dst An array of at least {@link ServerChunk#SIZE} bytes.
+     * @return true on success; false if the chunk is not in the world.
+     */
+    public boolean copyChunk(int x, int y, byte[] dst) {
+        if (x < 0 || y < 0 || x >= WorldConstants.WORLD_CHUNKS_WIDE
+                || y >= WorldConstants.WORLD_CHUNKS_TALL) { // Guard
+            return false;
+        }
+        world.loadChunk(x, y).copyTo(dst, epoch);
+        return true;
+    }
+
+    /**
+     * Returns the blocks of a chunk as they were when this snapshot was taken.
+     * @param x The chunk's x coordinate in chunks.
+     * @param y The chunk's y coordinate in chunks.
+     * @return blocks of the chunk, or null if the chunk is not in the world.
+     */
+    public byte[] getChunk(int x, int y) {
+        byte[] result = new byte[ServerChunk.SIZE];
+        return copyChunk(x, y, result) ? result : null;
+    }
+
+    /**
+     * Releases this snapshot so that chunks can throw away the blocks that
+     * were kept for it.  The snapshot must not be used afterwards.
+     */
+    public synchronized void release() {
+        if (!released) {
+            released = true;
+            epochs.close(epoch);
+        }
+    }
+}
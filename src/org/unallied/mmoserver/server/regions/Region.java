@@ -1,6 +1,8 @@
 package org.unallied.mmoserver.server.regions;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Random;
 
 import libnoiseforjava.exception.ExceptionInvalidParam;
@@ -8,7 +10,7 @@ import libnoiseforjava.module.Perlin;
 
 import org.unallied.mmocraft.constants.WorldConstants;
 import org.unallied.mmoserver.monsters.ServerMonsterData;
-import org.unallied.mmoserver.monsters.ServerMonsterManager;
+import org.unallied.mmoserver.monsters.SpawnTable;
 
 /**
  * Regions are "groups" of chunks that behave in a particular manner.
@@ -54,6 +56,13 @@ public abstract class Region {
      */
     protected Region bottomRegion = null;
     
+    /**
+     * The monsters that can spawn in this region, one table for each
+     * difficulty band.  Null until {@link #setSpawnTables(SpawnTable[])}
+     * is called.
+     */
+    private SpawnTable[] spawnTables = null;
+    
     /**
      * 
      * @param x The world-based x coordinate of this region (in blocks)
@@ -108,30 +117,21 @@ public abstract class Region {
     }
     
     /**
-     * Returns a perlin value (-1 to 1) for a specified coordinate.  It is
-     * possible to obtain values outside of this range.
-     * 
-     * Before the perlin value is retrieved, an average is performed between
-     * the top, right, bottom, and left regions to this region.
-     * A future update might want to also include the top-right, bottom-right,
-     * bottom-left and top-left regions in this calculation.
+     * Creates a Perlin noise module which is configured for this type of
+     * region.  Modules are never modified after they are created, so each
+     * world generation thread can keep its own module per region type
+     * instead of reconfiguring a shared module for every block.
      * 
-     * This, of course, is only a problem if our height contains multiple
-     * regions.  Otherwise the problem is reduced to left/right.
+     * An average could be performed between the top, right, bottom, and left
+     * regions to this region.  This, of course, is only a problem if our
+     * height contains multiple regions.  Otherwise the problem is reduced
+     * to left/right.
      * 
-     * @param perlin The perlin object that's associated with this world
-     * @param x The world-based x coordinate, where 0 is the far left side of
-     * the world.
-     * @param y The world-based y coordinate, where 0 is the top of the world
-     * @return value between -1 and 1 (usually).
+     * @param seed The seed of the world's terrain noise
+     * @return noise configured for this region
      */
-    public double getValue(Perlin perlin, int x, int y) {
-        double rw = WorldConstants.WORLD_REGION_WIDTH;
-        double rh = WorldConstants.WORLD_REGION_HEIGHT;
-        
-        if (rw == 0 || rh == 0) {
-            return 0.0;
-        }
+    public Perlin createNoise(int seed) {
+        Perlin perlin = new Perlin(seed);
         
         // Get the frequency, lacunarity, persistence, and octaveCount averages
         double freq     = 0.0;
@@ -158,7 +158,25 @@ public abstract class Region {
         }
         perlin.setPersistence(persist);
         
-        // We can now query the value for this coordinate
+        return perlin;
+    }
+    
+    /**
+     * Returns a perlin value (-1 to 1) for a specified coordinate.  It is
+     * possible to obtain values outside of this range.
+     * 
+     * @param perlin The noise returned by {@link #createNoise(int)} for this
+     * type of region.  It is not modified.
+     * @param x The world-based x coordinate, where 0 is the far left side of
+     * the world.
+     * @param y The world-based y coordinate, where 0 is the top of the world
+     * @return value between -1 and 1 (usually).
+     */
+    public double getValue(Perlin perlin, int x, int y) {
+        if (WorldConstants.WORLD_REGION_WIDTH == 0 || WorldConstants.WORLD_REGION_HEIGHT == 0) {
+            return 0.0;
+        }
+        
         return perlin.getValue(WorldConstants.WORLD_STEP*x, 
                 WorldConstants.WORLD_STEP*y);
     }
@@ -201,25 +219,50 @@ public abstract class Region {
         return 0.02f;
     }
 
+    /**
+     * Returns whether a monster is allowed to spawn in this type of region.
+     * Regions can override this to limit their monsters (e.g. to desert
+     * monsters).
+     * @param monster The monster.
+     * @return true if the monster can spawn in this region.
+     */
+    public boolean canSpawn(ServerMonsterData monster) {
+        return true;
+    }
+    
+    /**
+     * Creates the spawn tables for this type of region from all of the
+     * monsters in the game.  Regions of the same type can share the tables.
+     * @param monsters All of the monsters in the game.
+     * @return a table for each difficulty band.
+     */
+    public SpawnTable[] createSpawnTables(Collection<ServerMonsterData> monsters) {
+        List<ServerMonsterData> allowed = new ArrayList<ServerMonsterData>();
+        for (ServerMonsterData monster : monsters) {
+            if (canSpawn(monster)) {
+                allowed.add(monster);
+            }
+        }
+        return SpawnTable.createBands(allowed);
+    }
+    
+    /**
+     * Sets the tables used by {@link #getMonster(int)}.  This should be called
+     * once after the monsters have been loaded.
+     * @param spawnTables a table for each difficulty band.
+     */
+    public void setSpawnTables(SpawnTable[] spawnTables) {
+        this.spawnTables = spawnTables;
+    }
+
     /**
      * Retrieves a random monster from this region given the region difficulty.
-     * TODO:  Finish implementation.
+     * This takes constant time no matter how many monsters there are.
      * @param monsterDifficulty
      * @return monsterData or null if no monsters in list.
      */
     public ServerMonsterData getMonster(int monsterDifficulty) {
-        Collection<ServerMonsterData> monsters = ServerMonsterManager.getInstance().getAllServerMonsterData();
-
-        if (monsters.size() > 0) {
-            int rand = random.nextInt(monsters.size());
-            int i = 0;
-            for (ServerMonsterData monster : monsters) {
-                if (i++ == rand) {
-                    return monster;
-                }
-            }
-        }
-        
-        return null;
+        SpawnTable[] tables = spawnTables;
+        return tables == null ? null : tables[SpawnTable.getBand(monsterDifficulty)].next(random);
     }
 }
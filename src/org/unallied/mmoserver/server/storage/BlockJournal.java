@@ -0,0 +1,389 @@
+package org.unallied.mmoserver.server.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An append-only journal of block changes.  Every change is journaled so that
+ * changes made since the last checkpoint of the {@link WorldStore} are not
+ * lost if the server stops unexpectedly.
+ * <br /><br />
+ * {@link #append(int, int, byte, byte, long)} never blocks.  Changes are
+ * placed in a lock-free ring buffer and written to disk by a background
+ * thread, which forces each batch of changes to disk at once (group commit).
+ * <br /><br />
+ * The journal is split into generations.  A checkpoint calls
+ * {@link #rotate()} to start a new generation, saves the dirty chunks, and
+ * then calls {@link #deleteBefore(long)} to throw away the old generations.
+ * @author Alexandria
+ *
+ */
+public class BlockJournal implements Runnable {
+
+    /**
+     * Called for every change in the journal while replaying it.
+     * @author Alexandria
+     *
+     */
+    public interface Replayer {
+        /**
+         * Replays a single block change.
+         * @param x The x block coordinate of the world
+         * @param y The y block coordinate of the world
+         * @param oldValue The value of the block before it changed
+         * @param newValue The value of the block after it changed
+         * @param tick The world tick in which the change was made
+         */
+        public void replay(int x, int y, byte oldValue, byte newValue, long tick);
+    }
+
+    /** The number of changes that the ring buffer can hold.  Must be a power of 2. */
+    private static final int RING_SIZE = 1 << 16;
+
+    /** The time in milliseconds that the writer waits when there is nothing to write. */
+    private static final long WRITE_FREQUENCY = 5;
+
+    /** Used to verify that a journal file is valid. */
+    private static final int MAGIC = 0x4D4D4A4C; // "MMJL"
+
+    /** The number of bytes in a journal record:  x, y, old, new, tick. */
+    private static final int RECORD_SIZE = 4 + 4 + 1 + 1 + 8;
+
+    /** The prefix and suffix of journal file names. */
+    private static final String PREFIX = "journal.";
+    private static final String SUFFIX = ".dat";
+
+    /** The directory that contains the journal files. */
+    private final File directory;
+
+    /** The next position that a producer will claim. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** The next position that the writer will read.  Only used by the writer. */
+    private long head = 0;
+
+    /**
+     * The sequence of each slot.  A slot is free for position p when its
+     * sequence is p, and holds a change for position p when it is p + 1.
+     */
+    private final AtomicLongArray sequences = new AtomicLongArray(RING_SIZE);
+
+    /** (y << 32) | x of each change in the ring. */
+    private final long[] positions = new long[RING_SIZE];
+
+    /** (tick << 16) | (old << 8) | new of each change in the ring. */
+    private final long[] changes = new long[RING_SIZE];
+
+    /** The number of changes that could not be journaled because the ring was full. */
+    private final AtomicLong overflows = new AtomicLong();
+
+    /** Holds records while they are being written to disk. */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * 1024);
+
+    /** The journal file that is currently being written. */
+    private FileOutputStream out = null;
+    private FileChannel channel = null;
+
+    /** The generation of the journal file that is currently being written. */
+    private long generation = 0;
+
+    private volatile boolean running = false;
+
+    /**
+     * Opens the journal in <code>directory</code>.  Existing journal files are
+     * kept until they are replayed and checkpointed.
+     * @param directory The directory containing the journal files.
+     */
+    public BlockJournal(String directory) {
+        this.directory = new File(directory);
+        for (int i=0; i < RING_SIZE; ++i) {
+            sequences.set(i, i);
+        }
+        long[] generations = getGenerations();
+        if (generations.length > 0) {
+            generation = generations[generations.length - 1];
+        }
+    }
+
+    /**
+     * Returns the generations of all journal files on disk, in order.
+     * @return generations
+     */
+    private long[] getGenerations() {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        if (names == null) {
+            return new long[0];
+        }
+        long[] result = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            try {
+                result[count] = Long.parseLong(name.substring(PREFIX.length(),
+                        name.length() - SUFFIX.length()));
+                ++count;
+            } catch (NumberFormatException e) {
+                // Not one of ours
+            }
+        }
+        result = Arrays.copyOf(result, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private File getFile(long generation) {
+        return new File(directory, PREFIX + generation + SUFFIX);
+    }
+
+    /**
+     * Replays every change in every journal file on disk, oldest first.  This
+     * must be called before {@link #start()}.
+     * @param replayer Called for every change.
+     * @return the number of changes replayed
+     */
+    public long replay(Replayer replayer) {
+        long count = 0;
+        for (long gen : getGenerations()) {
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(getFile(gen));
+                FileChannel channel = in.getChannel();
+                ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+                while (data.hasRemaining() && channel.read(data) >= 0) {
+                }
+                data.flip();
+                if (data.remaining() < 4 || data.getInt() != MAGIC) {
+                    System.err.println("Invalid journal file: " + getFile(gen));
+                    continue;
+                }
+                // A partially written record at the end is ignored
+                while (data.remaining() >= RECORD_SIZE) {
+                    int x = data.getInt();
+                    int y = data.getInt();
+                    byte oldValue = data.get();
+                    byte newValue = data.get();
+                    long tick = data.getLong();
+                    replayer.replay(x, y, oldValue, newValue, tick);
+                    ++count;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Opens a new journal file and starts the background writer.
+     */
+    public synchronized void start() {
+        openFile(generation + 1);
+        running = true;
+        Thread writer = new Thread(this, "BlockJournal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Opens the journal file for a new generation.  The caller must hold the
+     * lock on this journal.
+     * @param newGeneration The generation of the new file.
+     */
+    private void openFile(long newGeneration) {
+        try {
+            generation = newGeneration;
+            out = new FileOutputStream(getFile(generation));
+            channel = out.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(4);
+            header.putInt(MAGIC);
+            header.flip();
+            channel.write(header);
+        } catch (IOException e) {
+            System.err.println("Unable to open block journal: " + e.getMessage());
+            out = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * Closes the current journal file.  The caller must hold the lock on
+     * this journal.
+     */
+    private void closeFile() {
+        if (out != null) {
+            try {
+                channel.force(false);
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            out = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * Adds a block change to the journal.  This never blocks.
+     * @param x The x block coordinate of the world
+     * @param y The y block coordinate of the world
+     * @param oldValue The value of the block before it changed
+     * @param newValue The value of the block after it changed
+     * @param tick The world tick in which the change was made
+     * @return true on success; false if the journal is full.  If the journal
+     *         is full, the change will only be saved by the next checkpoint.
+     */
+    public boolean append(int x, int y, byte oldValue, byte newValue, long tick) {
+        while (true) {
+            long position = tail.get();
+            int slot = (int) (position & (RING_SIZE - 1));
+            long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    positions[slot] = ((long) y << 32) | (x & 0xFFFFFFFFL);
+                    changes[slot] = (tick << 16) | ((oldValue & 0xFF) << 8) | (newValue & 0xFF);
+                    sequences.lazySet(slot, position + 1); // Publish the change
+                    return true;
+                }
+            } else if (sequence < position) {
+                overflows.incrementAndGet();
+                return false;
+            }
+            // Another producer claimed this position, so try the next one
+        }
+    }
+
+    /**
+     * Writes every change in the ring buffer to the current journal file and
+     * forces it to disk.  The caller must hold the lock on this journal.
+     * @return the number of changes written
+     */
+    private int drain() {
+        int count = 0;
+        buffer.clear();
+        while (true) {
+            int slot = (int) (head & (RING_SIZE - 1));
+            if (sequences.get(slot) != head + 1) {
+                break; // Nothing else has been published
+            }
+            long position = positions[slot];
+            long change = changes[slot];
+            sequences.lazySet(slot, head + RING_SIZE); // Free the slot
+            ++head;
+
+            buffer.putInt((int) position);
+            buffer.putInt((int) (position >> 32));
+            buffer.put((byte) (change >> 8));
+            buffer.put((byte) change);
+            buffer.putLong(change >>> 16);
+            ++count;
+            if (!buffer.hasRemaining()) {
+                write();
+            }
+        }
+        write();
+        if (count > 0 && channel != null) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the records in the buffer to the current journal file.
+     */
+    private void write() {
+        buffer.flip();
+        if (channel != null) {
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            int count;
+            synchronized (this) {
+                count = drain();
+            }
+            if (count == 0) {
+                try {
+                    Thread.sleep(WRITE_FREQUENCY);
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all pending changes and starts a new journal file.  Every change
+     * that was added before this call is in a generation older than the one
+     * returned.
+     * @return the generation of the new journal file
+     */
+    public synchronized long rotate() {
+        drain();
+        closeFile();
+        openFile(generation + 1);
+        return generation;
+    }
+
+    /**
+     * Deletes all journal files older than <code>oldestGeneration</code>.
+     * This should be called once all of their changes have been saved.
+     * @param oldestGeneration The oldest generation to keep.
+     */
+    public void deleteBefore(long oldestGeneration) {
+        for (long gen : getGenerations()) {
+            if (gen < oldestGeneration && !getFile(gen).delete()) {
+                System.err.println("Unable to delete journal file: " + getFile(gen));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of changes that could not be journaled because the
+     * ring buffer was full.
+     * @return overflows
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    /**
+     * Writes all pending changes and closes the journal.
+     */
+    public synchronized void close() {
+        running = false;
+        drain();
+        closeFile();
+    }
+}
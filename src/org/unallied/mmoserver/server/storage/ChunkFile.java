@@ -0,0 +1,149 @@
+package org.unallied.mmoserver.server.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A single memory-mapped file holding a fixed block of
+ * {@link #CHUNKS_WIDE} x {@link #CHUNKS_TALL} chunks.  The file has a fixed
+ * size and is laid out as:<br />
+ * <code>[header][offset table][chunk slots]</code><br />
+ * The header contains a magic number, a version and the chunk size in bytes.
+ * The offset table contains one int per chunk.  An offset of 0 means that the
+ * chunk has never been written, otherwise it is the position of the chunk's
+ * slot in the file.
+ * @author Alexandria
+ *
+ */
+public class ChunkFile {
+
+    /** The number of chunks stored horizontally in a single file. */
+    public static final int CHUNKS_WIDE = 32;
+
+    /** The number of chunks stored vertically in a single file. */
+    public static final int CHUNKS_TALL = 32;
+
+    /** Used to verify that the file is a chunk file. */
+    private static final int MAGIC = 0x4D4D4343; // "MMCC"
+
+    /** The version of the file layout.  Increment when the layout changes. */
+    private static final int VERSION = 1;
+
+    /** Size of the header in bytes:  magic, version, chunk size. */
+    private static final int HEADER_SIZE = 12;
+
+    /** Size of the offset table in bytes. */
+    private static final int TABLE_SIZE = CHUNKS_WIDE * CHUNKS_TALL * 4;
+
+    /** The number of bytes in a single chunk. */
+    private final int chunkSize;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Opens (or creates) a chunk file.  The entire file is mapped into memory,
+     * but the operating system will only page in the parts that are used.
+     * @param path The file to open.
+     * @param chunkSize The number of bytes in a single chunk.
+     * @throws IOException If the file could not be opened or is not a valid
+     *                     chunk file.
+     */
+    public ChunkFile(File path, int chunkSize) throws IOException {
+        this.chunkSize = chunkSize;
+        long size = HEADER_SIZE + TABLE_SIZE + (long)CHUNKS_WIDE * CHUNKS_TALL * chunkSize;
+        boolean isNew = !path.exists() || path.length() == 0;
+
+        file = new RandomAccessFile(path, "rw");
+        try {
+            if (!isNew && file.length() != size) {
+                throw new IOException("Chunk file " + path + " has size "
+                        + file.length() + ", expected " + size);
+            }
+            file.setLength(size);
+            channel = file.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+
+        if (isNew) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, chunkSize);
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                || buffer.getInt(8) != chunkSize) {
+            close();
+            throw new IOException("Chunk file " + path + " has an invalid header.");
+        }
+    }
+
+    /**
+     * Returns the position of the offset table entry for a chunk.
+     * @param x The x coordinate of the chunk inside of this file.
+     * @param y The y coordinate of the chunk inside of this file.
+     * @return tableIndex
+     */
+    private int getTableOffset(int x, int y) {
+        return HEADER_SIZE + (y * CHUNKS_WIDE + x) * 4;
+    }
+
+    /**
+     * Reads a chunk from the file.
+     * @param x The x coordinate of the chunk inside of this file.
+     * @param y The y coordinate of the chunk inside of this file.
+     * @param dst The array to copy the chunk into.  Must be at least
+     *            <code>chunkSize</code> bytes long.
+     * @return true if the chunk was read; false if it has never been written.
+     */
+    public synchronized boolean read(int x, int y, byte[] dst) {
+        int offset = buffer.getInt(getTableOffset(x, y));
+        if (offset == 0) {
+            return false;
+        }
+        buffer.position(offset);
+        buffer.get(dst, 0, chunkSize);
+        return true;
+    }
+
+    /**
+     * Writes a chunk to the file.  The data is not guaranteed to be on disk
+     * until {@link #flush()} is called.
+     * @param x The x coordinate of the chunk inside of this file.
+     * @param y The y coordinate of the chunk inside of this file.
+     * @param src The chunk's blocks.  Must be at least <code>chunkSize</code>
+     *            bytes long.
+     */
+    public synchronized void write(int x, int y, byte[] src) {
+        int offset = HEADER_SIZE + TABLE_SIZE + (y * CHUNKS_WIDE + x) * chunkSize;
+        buffer.position(offset);
+        buffer.put(src, 0, chunkSize);
+        // Only mark the chunk as written once its data is in place.
+        buffer.putInt(getTableOffset(x, y), offset);
+    }
+
+    /**
+     * Forces all changes in this file to be written to disk.
+     */
+    public synchronized void flush() {
+        buffer.force();
+    }
+
+    /**
+     * Flushes and closes the file.
+     */
+    public synchronized void close() {
+        try {
+            buffer.force();
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.unallied.mmoserver.server.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.unallied.mmocraft.constants.WorldConstants;
+
+/**
+ * Stores the world on disk.  Chunks are grouped into {@link ChunkFile}s which
+ * are memory-mapped and opened the first time one of their chunks is needed.
+ * The world's seed is kept in a separate file so that the world generators
+ * can be rebuilt without regenerating any blocks.
+ * @author Alexandria
+ *
+ */
+public class WorldStore {
+
+    /** The name of the file containing the world's seed. */
+    private static final String WORLD_FILE = "world.dat";
+
+    /** Used to verify that the world file is valid. */
+    private static final int WORLD_MAGIC = 0x4D4D5744; // "MMWD"
+
+    /** The number of bytes in a single chunk. */
+    public static final int CHUNK_SIZE = WorldConstants.WORLD_CHUNK_WIDTH
+            * WorldConstants.WORLD_CHUNK_HEIGHT;
+
+    /** The directory that contains all world files. */
+    private final File directory;
+
+    /** All chunk files that have been opened, keyed by (y << 32) | x of the file. */
+    private final Map<Long, ChunkFile> files = new HashMap<Long, ChunkFile>();
+
+    /** The world's seed, or null if the world has not been generated yet. */
+    private Long seed = null;
+
+    /**
+     * Opens the world store in <code>directory</code>, creating the directory
+     * if it does not exist.
+     * @param directory The directory containing the world.
+     */
+    public WorldStore(String directory) {
+        this.directory = new File(directory);
+        if (!this.directory.exists() && !this.directory.mkdirs()) {
+            System.err.println("Unable to create world directory: " + directory);
+        }
+        loadSeed();
+    }
+
+    /**
+     * Loads the seed from the world file if it exists.
+     */
+    private void loadSeed() {
+        File worldFile = new File(directory, WORLD_FILE);
+        if (!worldFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(worldFile));
+            if (in.readInt() == WORLD_MAGIC) {
+                seed = in.readLong();
+            } else {
+                System.err.println("Invalid world file: " + worldFile);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the world's seed.
+     * @return seed, or null if the world has never been saved.
+     */
+    public Long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Sets the world's seed and writes it to disk.  This should only be called
+     * once all of the world's chunks have been written.
+     * @param seed The seed used to generate the world.
+     */
+    public void setSeed(long seed) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(new File(directory, WORLD_FILE)));
+            out.writeInt(WORLD_MAGIC);
+            out.writeLong(seed);
+            this.seed = seed;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the chunk file that holds the chunk at (x,y), opening it if needed.
+     * @param x The chunk's x coordinate.
+     * @param y The chunk's y coordinate.
+     * @return chunkFile, or null if the file could not be opened.
+     */
+    private synchronized ChunkFile getFile(int x, int y) {
+        int fileX = x / ChunkFile.CHUNKS_WIDE;
+        int fileY = y / ChunkFile.CHUNKS_TALL;
+        long key = ((long) fileY << 32) | fileX;
+        ChunkFile file = files.get(key);
+        if (file == null) {
+            try {
+                file = new ChunkFile(new File(directory,
+                        "chunks." + fileX + "." + fileY + ".dat"), CHUNK_SIZE);
+                files.put(key, file);
+            } catch (IOException e) {
+                System.err.println("Unable to open chunk file: " + e.getMessage());
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Reads the chunk at (x,y).
+     * @param x The chunk's x coordinate.
+     * @param y The chunk's y coordinate.
+     * @param dst The array to copy the chunk into.
+     * @return true if the chunk was read; false if it has never been written.
+     */
+    public boolean readChunk(int x, int y, byte[] dst) {
+        ChunkFile file = getFile(x, y);
+        return file != null
+                && file.read(x % ChunkFile.CHUNKS_WIDE, y % ChunkFile.CHUNKS_TALL, dst);
+    }
+
+    /**
+     * Writes the chunk at (x,y).
+     * @param x The chunk's x coordinate.
+     * @param y The chunk's y coordinate.
+     * @param src The chunk's blocks.
+     */
+    public void writeChunk(int x, int y, byte[] src) {
+        ChunkFile file = getFile(x, y);
+        if (file != null) {
+            file.write(x % ChunkFile.CHUNKS_WIDE, y % ChunkFile.CHUNKS_TALL, src);
+        }
+    }
+
+    /**
+     * Forces all written chunks to disk.
+     */
+    public synchronized void flush() {
+        for (ChunkFile file : files.values()) {
+            file.flush();
+        }
+    }
+
+    /**
+     * Flushes and closes all chunk files.
+     */
+    public synchronized void close() {
+        for (ChunkFile file : files.values()) {
+            file.close();
+        }
+        files.clear();
+    }
+}